@@ -0,0 +1,364 @@
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Micro benchmarks for the command framing and response assembly hot path, run without hardware against
+ *  a canned Transport that replays a prepared response without allocating.  Each benchmark is warmed up,
+ *  then timed for a fixed period, and reports the time per operation, the throughput, the bytes allocated
+ *  per operation (from the per-thread allocation counter) and the number of collections while it ran, so
+ *  a change that adds copies or garbage to the hot path shows up as a number.  Usage:
+ *
+ *    java -cp RglComm.jar:lib/* Bench [filter] [seconds]
+ *
+ *  filter, if given, only runs benchmarks whose name contains it, and seconds sets the time spent timing
+ *  each benchmark (default 2, plus the same again for warm up).
+ *
+ *  Note: the sizes match the responses seen in use: 600 bytes (:WAV:DATA? in NORMal mode), 1.2 MB (a 24
+ *  bit 800x480 :DISP:DATA? screen) and 24 MB (a full DS4024 memory depth read in RAW mode).
+ */
+
+class Bench {
+  private static final int[]    SIZES = {600, 1152054, 24000000};
+  private static final String[] LABELS = {"600B", "1.2MB", "24MB"};
+  private static volatile long  sink;               // Keeps results live so they aren't optimized away
+
+  interface Op {
+    /**
+     *  @return a value derived from the result (folded into sink)
+     */
+    long run () throws Exception;
+  }
+
+  private static class Case {
+    final String  name;
+    final long    bytes;
+    final Op      op;
+
+    Case (String name, long bytes, Op op) {
+      this.name = name;
+      this.bytes = bytes;
+      this.op = op;
+    }
+  }
+
+  /**
+   *  Transport that answers every REQUEST_DEV_DEP_MSG_IN with the next part of a fixed response, split into
+   *  messages of at most maxXfer bytes, and discards whatever is sent to it.  Nothing is allocated per
+   *  transfer, so the allocations measured are those of USBTMC and the decoders.
+   */
+  static class Canned implements Transport {
+    private final int     maxPkt;
+    private final int     maxXfer;
+    private final byte[]  response;
+    private int           pos, inCount, inSent;
+    private byte          tag;
+    private final byte[]  hdr = new byte[12];
+
+    Canned (byte[] response, int maxPkt, int maxXfer) {
+      this.response = response;
+      this.maxPkt = maxPkt;
+      this.maxXfer = maxXfer;
+    }
+
+    public int getMaxPkt () {
+      return maxPkt;
+    }
+
+    public void send (ByteBuffer data) {
+      int base = data.position();
+      if (data.get(base) == 2) {
+        tag = data.get(base + 1);
+        int size = data.get(base + 4) & 0xFF | (data.get(base + 5) & 0xFF) << 8 | (data.get(base + 6) & 0xFF) << 16 |
+                   (data.get(base + 7) & 0xFF) << 24;
+        inCount = Math.min(Math.min(size, maxXfer), response.length - pos);
+        inSent = -12;
+      } else if ((data.get(base + 8) & 0x01) != 0) {
+        pos = 0;                    // New command, so replay the response from the start
+      }
+      data.position(data.limit());
+    }
+
+    public int receive (ByteBuffer dst, int length) {
+      int size = Math.min((length + maxPkt - 1) / maxPkt * maxPkt, dst.remaining());
+      int start = dst.position();
+      if (inSent < 0) {
+        hdr[0] = 2;
+        hdr[1] = tag;
+        hdr[2] = (byte) ~tag;
+        hdr[4] = (byte) inCount;
+        hdr[5] = (byte) (inCount >> 8);
+        hdr[6] = (byte) (inCount >> 16);
+        hdr[7] = (byte) (inCount >> 24);
+        hdr[8] = (byte) (pos + inCount >= response.length ? 0x01 : 0x00);
+        dst.put(hdr);
+        size -= 12;
+        inSent = 0;
+      }
+      int count = Math.min(size, inCount - inSent);
+      dst.put(response, pos + inSent, count);
+      inSent += count;
+      if (inSent == inCount) {
+        pos += inCount;
+        inSent = inCount = 0;
+      }
+      return dst.position() - start;
+    }
+
+    public boolean isAlive () {
+      return true;
+    }
+
+    public void resetDevice () {}
+
+    public void close () {}
+  }
+
+  /**
+   *  Sink that only counts the bytes it's given
+   */
+  private static class CountSink implements BlockDecoder.Sink {
+    long count;
+
+    public void begin (long length) {
+      count = 0;
+    }
+
+    public void accept (ByteBuffer data) {
+      count += data.remaining();
+      data.position(data.limit());
+    }
+
+    public void end () {}
+  }
+
+  /**
+   *  @return IEEE 488.2 block response (#9<length><body>\n) holding body
+   */
+  static byte[] block (byte[] body) {
+    byte[] prefix = String.format("#9%09d", body.length).getBytes();
+    byte[] rsp = new byte[prefix.length + body.length + 1];
+    System.arraycopy(prefix, 0, rsp, 0, prefix.length);
+    System.arraycopy(body, 0, rsp, prefix.length, body.length);
+    rsp[rsp.length - 1] = '\n';
+    return rsp;
+  }
+
+  static byte[] wave (int size) {
+    byte[] data = new byte[size];
+    for (int ii = 0; ii < size; ii++) {
+      data[ii] = (byte) (128 + 100 * Math.sin(2 * Math.PI * (ii % 1000) / 1000.0));
+    }
+    return data;
+  }
+
+  /**
+   *  @return a 24 bit BMP image of width x height pixels
+   */
+  static byte[] bmp (int width, int height) {
+    int rowSize = (width * 3 + 3) & ~0x03;
+    ByteBuffer buf = ByteBuffer.allocate(54 + rowSize * height).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+    buf.put((byte) 'B').put((byte) 'M').putInt(buf.capacity()).putInt(0).putInt(54);
+    buf.putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) 24);
+    buf.putInt(0).putInt(rowSize * height).putInt(2835).putInt(2835).putInt(0).putInt(0);
+    for (int yy = 0; yy < height; yy++) {
+      for (int xx = 0; xx < rowSize; xx++) {
+        buf.put((byte) (xx < width * 3 ? (xx + yy) : 0));
+      }
+    }
+    return buf.array();
+  }
+
+  private static List<Case> cases () throws IOException {
+    List<Case> cases = new ArrayList<>();
+    // Command encoding: one short command, and one that spans several packets
+    String shortCmd = ":WAV:DATA?\n";
+    StringBuilder buf = new StringBuilder();
+    while (buf.length() < 2000) {
+      buf.append(":SOUR1:VOLT ").append(buf.length()).append(';');
+    }
+    String longCmd = buf.append('\n').toString();
+    USBTMC encoder = new USBTMC(new Canned(new byte[0], 512, Integer.MAX_VALUE));
+    cases.add(new Case("encode/short", shortCmd.length(), () -> {
+      encoder.write(shortCmd);
+      return 1;
+    }));
+    cases.add(new Case("encode/2KB", longCmd.length(), () -> {
+      encoder.write(longCmd);
+      return 1;
+    }));
+    for (int ii = 0; ii < SIZES.length; ii++) {
+      byte[] body = ii == 1 ? bmp(800, 480) : wave(SIZES[ii]);
+      byte[] rsp = block(body);
+      // Reassembly of a response into one buffer: large transfers, and one 64 byte packet per message
+      USBTMC large = new USBTMC(new Canned(rsp, 512, Integer.MAX_VALUE));
+      large.asyncIn = false;
+      cases.add(new Case("reassemble/large/" + LABELS[ii], rsp.length, () -> large.query(":WAV:DATA?\n").remaining()));
+      if (ii < 2) {
+        USBTMC small = new USBTMC(new Canned(rsp, 64, Integer.MAX_VALUE));
+        small.largeXfer = false;
+        cases.add(new Case("reassemble/packet/" + LABELS[ii], rsp.length, () -> small.query(":WAV:DATA?\n").remaining()));
+      }
+      // Streaming the response through the block decoder, which parses the #N<length> prefix
+      USBTMC stream = new USBTMC(new Canned(rsp, 512, Integer.MAX_VALUE));
+      stream.asyncIn = false;
+      CountSink count = new CountSink();
+      cases.add(new Case("stream/" + LABELS[ii], rsp.length, () -> {
+        stream.query(":WAV:DATA?\n", new BlockDecoder(count));
+        return count.count;
+      }));
+      ByteBuffer heap = ByteBuffer.wrap(rsp);
+      cases.add(new Case("prefix/" + LABELS[ii], 11, () -> {
+        heap.clear().limit(11);
+        BlockDecoder decoder = new BlockDecoder(count);
+        decoder.feed(heap);
+        return decoder.getLength();
+      }));
+      // Decoding the payload for display
+      if (ii == 1) {
+        cases.add(new Case("decode/bmp/" + LABELS[ii], body.length, () -> ImageIO.read(new ByteArrayInputStream(body)).getWidth()));
+      } else {
+        ByteBuffer data = ByteBuffer.wrap(body);
+        cases.add(new Case("decode/pyramid/" + LABELS[ii], body.length, () -> {
+          MinMaxPyramid pyramid = new MinMaxPyramid(data);
+          pyramid.range(0, body.length);
+          return pyramid.getMax();
+        }));
+      }
+    }
+    // Converting a 24 Mpt record to volts (in BYTE, WORD and ASCII format) and building its time axis
+    int points = SIZES[2];
+    WavePreamble bytePre = new WavePreamble(WavePreamble.BYTE, 2, points, 1, 1e-9, -0.012, 0, 0.0390625, -125, 0);
+    WavePreamble wordPre = new WavePreamble(WavePreamble.WORD, 2, points, 1, 1e-9, -0.012, 0, 0.0390625, -125, 0);
+    float[] volts = new float[points];
+    ByteBuffer bytes = ByteBuffer.wrap(wave(points));
+    WaveDecoder byteDecoder = new WaveDecoder(bytePre);
+    cases.add(new Case("volts/byte/24Mpt", points, () -> byteDecoder.decode(bytes, volts, 0)));
+    ByteBuffer mapped = ByteBuffer.allocateDirect(points).put(wave(points));
+    mapped.flip();
+    cases.add(new Case("volts/byte-direct/24Mpt", points, () -> byteDecoder.decode(mapped, volts, 0)));
+    ByteBuffer words = ByteBuffer.allocateDirect(points * 2);
+    for (int ii = 0; ii < points; ii++) {
+      words.put(bytes.get(ii)).put((byte) 0);
+    }
+    words.flip();
+    WaveDecoder wordDecoder = new WaveDecoder(wordPre);
+    cases.add(new Case("volts/word/24Mpt", words.remaining(), () -> wordDecoder.decode(words, volts, 0)));
+    StringBuilder ascii = new StringBuilder();
+    for (int ii = 0; ii < 1000000; ii++) {
+      ascii.append(ii > 0 ? "," : "").append(String.format("%e", byteDecoder.toVolts(bytes.get(ii) & 0xFF)));
+    }
+    ByteBuffer text = ByteBuffer.wrap(ascii.append('\n').toString().getBytes());
+    WaveDecoder textDecoder = new WaveDecoder(new WavePreamble(WavePreamble.ASCII, 0, 1000000, 1, 1e-9, 0, 0, 1, 0, 0));
+    cases.add(new Case("volts/ascii/1Mpt", text.remaining(), () -> textDecoder.decode(text, volts, 0)));
+    cases.add(new Case("seconds/24Mpt", points * 4L, () -> byteDecoder.toSeconds(0, points).length));
+    // Parsing replies: a DM3058 NR3 reading and a DP832 :MEAS:ALL? list, as Strings and from the bytes
+    ByteBuffer nr3 = ByteBuffer.wrap("-1.23456789E-01\n".getBytes());
+    ByteBuffer list = ByteBuffer.wrap("12.001,0.1000,1.2001\n".getBytes());
+    Response response = new Response();
+    cases.add(new Case("reply/nr3/string", nr3.remaining(), () -> {
+      String value = new String(nr3.array(), 0, nr3.remaining()).trim();
+      return (long) (Double.parseDouble(value) * 1e9);
+    }));
+    cases.add(new Case("reply/nr3/bytes", nr3.remaining(), () -> {
+      response.parse(nr3);
+      return (long) (response.get(0) * 1e9);
+    }));
+    cases.add(new Case("reply/list/string", list.remaining(), () -> {
+      long acc = 0;
+      for (String value : new String(list.array(), 0, list.remaining()).trim().split(",")) {
+        acc += (long) (Double.parseDouble(value) * 1e3);
+      }
+      return acc;
+    }));
+    cases.add(new Case("reply/list/bytes", list.remaining(), () -> {
+      long acc = 0;
+      response.parse(list);
+      for (int ii = 0; ii < response.getCount(); ii++) {
+        acc += (long) (response.get(ii) * 1e3);
+      }
+      return acc;
+    }));
+    // Logging readings to a trend store (16 bytes each before compression), and summarizing a week of them
+    File dir = Files.createTempDirectory("trends").toFile();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }));
+    TrendStore trends = new TrendStore(dir);
+    TrendStore.Series logged = trends.series("append");
+    long[] clock = {0};
+    cases.add(new Case("trend/append", 16, () -> {
+      long time = clock[0] += 100;
+      logged.append(time, 5 + (time % 7919) * 1e-6);
+      return time;
+    }));
+    TrendStore.Series week = trends.series("week");
+    long weekMillis = 7 * 24 * 3600 * 1000L;
+    for (long time = 0; time < weekMillis; time += 1000) {
+      week.append(time, 12 + Math.sin(time / 3.6e6) * 0.01);
+    }
+    cases.add(new Case("trend/query/week", 16 * weekMillis / 1000, () -> week.query(0, weekMillis, 1000).size));
+    // Measuring a 24 Mpt record, and its spectrum (a 2^23 point complex FFT of the first 2^24 samples)
+    float[] record = new float[points];
+    byteDecoder.decode(bytes, record, 0);
+    WaveAnalysis analysis = new WaveAnalysis();
+    cases.add(new Case("analysis/measure/24Mpt", points * 4L, () -> (long) analysis.measure(record, points, 1e-9).frequency));
+    cases.add(new Case("analysis/fft/24Mpt", points * 4L,
+                       () -> analysis.spectrum(record, points, 1e-9, WaveAnalysis.Window.HANN).getPeak()));
+    return cases;
+  }
+
+  private static long collections () {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  /**
+   *  Runs op repeatedly for about nanos
+   *  @return {operations, elapsed nanos, bytes allocated, collections}
+   */
+  private static long[] measure (Op op, long nanos) throws Exception {
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+    long gcs = collections();
+    long alloc = mx.getThreadAllocatedBytes(tid);
+    long start = System.nanoTime();
+    long ops = 0, now, acc = 0;
+    do {
+      acc += op.run();
+      ops++;
+    } while ((now = System.nanoTime()) - start < nanos);
+    alloc = mx.getThreadAllocatedBytes(tid) - alloc;
+    sink += acc;
+    return new long[] {ops, now - start, alloc, collections() - gcs};
+  }
+
+  public static void main (String[] args) throws Exception {
+    String filter = args.length > 0 ? args[0] : "";
+    long nanos = (long) ((args.length > 1 ? Double.parseDouble(args[1]) : 2) * 1e9);
+    System.out.printf("%-26s %12s %12s %14s %8s%n", "Benchmark", "us/op", "MB/s", "alloc B/op", "GCs");
+    for (Case test : cases()) {
+      if (!test.name.contains(filter)) {
+        continue;
+      }
+      measure(test.op, nanos);
+      long[] res = measure(test.op, nanos);
+      double nsOp = (double) res[1] / res[0];
+      System.out.printf("%-26s %12.3f %12.1f %14.0f %8d%n", test.name, nsOp / 1000, test.bytes * 1e3 / nsOp,
+                        (double) res[2] / res[0], res[3]);
+    }
+  }
+}
@@ -0,0 +1,217 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  Incremental decoder for IEEE 488.2 definite length arbitrary block responses (#N<length><data>) such
+ *  as those returned by :DISPlay:DATA? and :WAVeform:DATA?  The header is parsed from the first bytes
+ *  received, after which the body is passed on to a Sink, piece by piece, as it arrives, so the complete
+ *  response never needs to be held in memory.  Responses that are not blocks (scalar replies) are
+ *  collected as text instead.  Indefinite length blocks (#0<data>) run until the end of the response.
+ */
+
+class BlockDecoder {
+  private static final int  HASH = 0, COUNT = 1, LENGTH = 2, BODY = 3, DONE = 4, TEXT = 5;
+  private final Sink        sink;
+  private int               state = HASH, digits;
+  private long              length, remaining;
+  private StringBuilder     prefix = new StringBuilder();
+  private Text              text;
+
+  /**
+   *  Collects a text response, giving access to the bytes without copying them
+   */
+  private static class Text extends ByteArrayOutputStream {
+    ByteBuffer buffer () {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
+  interface Sink {
+    /**
+     *  Called once the block header has been parsed
+     *  @param length number of bytes in the block body, or -1 for an indefinite length block
+     */
+    void begin (long length) throws IOException;
+
+    /**
+     *  Called with each piece of the block body.  data is only valid for the duration of the call
+     */
+    void accept (ByteBuffer data) throws IOException;
+
+    void end () throws IOException;
+  }
+
+  /**
+   *  Sink that writes the block body to a FileChannel
+   */
+  static class FileSink implements Sink {
+    private final FileChannel channel;
+
+    FileSink (FileChannel channel) {
+      this.channel = channel;
+    }
+
+    public void begin (long length) {}
+
+    public void accept (ByteBuffer data) throws IOException {
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+    }
+
+    public void end () throws IOException {
+      channel.force(false);
+    }
+  }
+
+  /**
+   *  Sink that collects the block body in a heap buffer, which is ready to read once the block has ended
+   */
+  static class BufferSink implements Sink {
+    ByteBuffer body;
+
+    public void begin (long length) {
+      if (length > Integer.MAX_VALUE - 8) {
+        throw new IllegalStateException("Block too large to hold in memory: " + length);
+      }
+      body = ByteBuffer.allocate(length >= 0 ? (int) length : 64 * 1024);
+    }
+
+    public void accept (ByteBuffer data) {
+      if (body.remaining() < data.remaining()) {
+        // Indefinite length block, so grow the buffer
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + data.remaining()));
+        body.flip();
+        body = buf.put(body);
+      }
+      body.put(data);
+    }
+
+    public void end () {
+      body.flip();
+    }
+  }
+
+  BlockDecoder (Sink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   *  Consumes all the bytes remaining in data
+   */
+  void feed (ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      switch (state) {
+        case HASH: {
+          byte cc = data.get(data.position());
+          if (cc == '#') {
+            data.get();
+            prefix.append('#');
+            state = COUNT;
+          } else {
+            text = new Text();
+            state = TEXT;
+          }
+        } break;
+        case COUNT: {
+          byte cc = data.get();
+          if (cc < '0' || cc > '9') {
+            throw new IllegalStateException("Invalid block header: " + prefix + (char) cc);
+          }
+          prefix.append((char) cc);
+          digits = cc - '0';
+          if (digits == 0) {
+            remaining = length = -1;
+            sink.begin(-1);
+            state = BODY;
+          } else {
+            state = LENGTH;
+          }
+        } break;
+        case LENGTH: {
+          byte cc = data.get();
+          if (cc < '0' || cc > '9') {
+            throw new IllegalStateException("Invalid block header: " + prefix + (char) cc);
+          }
+          prefix.append((char) cc);
+          length = length * 10 + (cc - '0');
+          if (--digits == 0) {
+            remaining = length;
+            sink.begin(length);
+            state = BODY;
+            if (length == 0) {
+              sink.end();
+              state = DONE;
+            }
+          }
+        } break;
+        case BODY: {
+          int cnt = remaining < 0 ? data.remaining() : (int) Math.min(remaining, data.remaining());
+          ByteBuffer piece = data.duplicate();
+          piece.limit(data.position() + cnt);
+          sink.accept(piece);
+          data.position(data.position() + cnt);
+          if (remaining > 0 && (remaining -= cnt) == 0) {
+            sink.end();
+            state = DONE;
+          }
+        } break;
+        case TEXT:
+          while (data.hasRemaining()) {
+            text.write(data.get());
+          }
+          break;
+        default:
+          // Ignore the terminating newline, if any, after the block
+          data.position(data.limit());
+          break;
+      }
+    }
+  }
+
+  /**
+   *  Called after the last byte of the response has been fed to the decoder
+   */
+  void finish () throws IOException {
+    if (state == BODY) {
+      if (remaining >= 0) {
+        throw new USBTMC.FramingException("Block truncated, " + remaining + " of " + length + " bytes missing");
+      }
+      sink.end();
+      state = DONE;
+    } else if (state == COUNT || state == LENGTH) {
+      throw new IllegalStateException("Incomplete block header: " + prefix);
+    }
+  }
+
+  boolean isBlock () {
+    return state != TEXT && prefix.length() > 0;
+  }
+
+  /**
+   *  @return the block header, such as "#9001152054"
+   */
+  String getPrefix () {
+    return prefix.toString();
+  }
+
+  long getLength () {
+    return length;
+  }
+
+  /**
+   *  @return the response as text if it was not a block, otherwise null
+   */
+  String getText () {
+    return text != null ? new String(text.toByteArray()) : state == HASH ? "" : null;
+  }
+
+  /**
+   *  @return the response, if it was not a block, as a buffer over the bytes received, otherwise null
+   */
+  ByteBuffer getTextBuffer () {
+    return text != null ? text.buffer() : state == HASH ? ByteBuffer.allocate(0) : null;
+  }
+}
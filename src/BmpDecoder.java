@@ -0,0 +1,216 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *  Sink that decodes a BMP image straight from a block response (such as :DISPlay:DATA?) into a reused
+ *  BufferedImage as the block streams in, one row at a time, rather than buffering the whole file and
+ *  decoding it with ImageIO.  Uncompressed 8 bit (palette), 24 bit and 32 bit images are decoded directly,
+ *  while anything else (such as the JPG or PNG some devices return) falls back to ImageIO.  As each row is
+ *  stored the pixels that changed are noted, so a viewer can repaint only the region that changed.
+ *
+ *  Rows are written into the image while synchronized on it, so painting should also synchronize on it.
+ */
+
+class BmpDecoder implements BlockDecoder.Sink {
+  private static final int  HDR = 54;
+  private BufferedImage     image;
+  private int[]             pixels;
+  private final byte[]      header = new byte[HDR];
+  private int[]             palette;
+  private byte[]            row, extra;
+  private int               width, height, bits, offset, rowSize, tableAt, colors;
+  private boolean           topDown;
+  private long              pos;                      // Bytes of the file received so far
+  private int               rowFill, rowIdx;
+  private ByteArrayOutputStream other;                // Image ImageIO has to decode
+  private int               minX, minY, maxX, maxY;   // Bounds of the pixels changed by the last image
+  private long              length;
+
+  /**
+   *  @return image holding the last image decoded (which is reused if the next has the same size)
+   */
+  BufferedImage getImage () {
+    return image;
+  }
+
+  /**
+   *  @return bounds of the pixels that changed in the last image decoded, or null if none changed
+   */
+  Rectangle getDirty () {
+    return maxX >= minX ? new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1) : null;
+  }
+
+  /**
+   *  @return size of the last image, in bytes
+   */
+  long getLength () {
+    return length;
+  }
+
+  public void begin (long length) {
+    this.length = length;
+    pos = 0;
+    rowFill = rowIdx = 0;
+    palette = null;
+    other = null;
+    minX = minY = Integer.MAX_VALUE;
+    maxX = maxY = -1;
+  }
+
+  public void accept (ByteBuffer data) throws IOException {
+    if (other != null) {
+      byte[] buf = new byte[data.remaining()];
+      data.get(buf);
+      other.write(buf);
+      pos += buf.length;
+      return;
+    }
+    while (data.hasRemaining()) {
+      if (pos < HDR) {
+        int count = (int) Math.min(HDR - pos, data.remaining());
+        data.get(header, (int) pos, count);
+        pos += count;
+        if (pos == HDR) {
+          parseHeader();
+          if (other != null) {
+            other.write(header);
+            accept(data);
+            return;
+          }
+        }
+      } else if (pos < offset) {
+        // Color table (for 8 bit images), or any other bytes before the pixels
+        int count = (int) Math.min(offset - pos, data.remaining());
+        data.get(extra, (int) (pos - HDR), count);
+        pos += count;
+        if (pos == offset && bits == 8) {
+          readPalette();
+        }
+      } else if (rowIdx < height) {
+        int count = Math.min(rowSize - rowFill, data.remaining());
+        data.get(row, rowFill, count);
+        rowFill += count;
+        pos += count;
+        if (rowFill == rowSize) {
+          storeRow(topDown ? rowIdx : height - 1 - rowIdx);
+          rowFill = 0;
+          rowIdx++;
+        }
+      } else {
+        // Ignore anything after the pixels
+        pos += data.remaining();
+        data.position(data.limit());
+      }
+    }
+  }
+
+  public void end () throws IOException {
+    if (other != null) {
+      BufferedImage img = ImageIO.read(new ByteArrayInputStream(other.toByteArray()));
+      other = null;
+      if (img == null) {
+        throw new IOException("Unsupported image format");
+      }
+      allocate(img.getWidth(), img.getHeight());
+      synchronized (image) {
+        Graphics2D g2 = image.createGraphics();
+        g2.drawImage(img, 0, 0, null);
+        g2.dispose();
+      }
+      minX = minY = 0;
+      maxX = width - 1;
+      maxY = height - 1;
+    } else if (pos < HDR || rowIdx < height) {
+      throw new IOException("Incomplete image: " + pos + " bytes");
+    }
+  }
+
+  private static int getInt (byte[] buf, int idx) {
+    return (buf[idx] & 0xFF) | (buf[idx + 1] & 0xFF) << 8 | (buf[idx + 2] & 0xFF) << 16 | (buf[idx + 3] & 0xFF) << 24;
+  }
+
+  private void parseHeader () {
+    int compression = getInt(header, 30);
+    int bpp = (header[28] & 0xFF) | (header[29] & 0xFF) << 8;
+    if (header[0] != 'B' || header[1] != 'M' || compression != 0 || (bpp != 8 && bpp != 24 && bpp != 32)) {
+      other = new ByteArrayOutputStream();
+      return;
+    }
+    bits = bpp;
+    offset = getInt(header, 10);
+    int hdrSize = getInt(header, 14);
+    int wid = getInt(header, 18);
+    int hgt = getInt(header, 22);
+    topDown = hgt < 0;
+    hgt = Math.abs(hgt);
+    // Color table follows the info header, which may be longer than BITMAPINFOHEADER
+    tableAt = 14 + hdrSize - HDR;
+    colors = getInt(header, 46) > 0 ? Math.min(256, getInt(header, 46)) : 256;
+    extra = new byte[Math.max(0, offset - HDR)];
+    rowSize = (wid * bits / 8 + 3) & ~0x03;
+    if (row == null || row.length != rowSize) {
+      row = new byte[rowSize];
+    }
+    allocate(wid, hgt);
+    if (bits == 8 && offset <= HDR) {
+      readPalette();
+    }
+  }
+
+  private void readPalette () {
+    palette = new int[256];
+    for (int ii = 0; ii < colors && tableAt + ii * 4 + 2 < extra.length; ii++) {
+      int idx = tableAt + ii * 4;
+      palette[ii] = (extra[idx + 2] & 0xFF) << 16 | (extra[idx + 1] & 0xFF) << 8 | (extra[idx] & 0xFF);
+    }
+  }
+
+  private void allocate (int wid, int hgt) {
+    if (image == null || wid != width || hgt != height) {
+      width = wid;
+      height = hgt;
+      image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      // Everything is new
+      minX = minY = 0;
+      maxX = width - 1;
+      maxY = height - 1;
+    }
+  }
+
+  private void storeRow (int yy) {
+    int base = yy * width;
+    int first = -1, last = -1;
+    synchronized (image) {
+      for (int xx = 0, idx = 0; xx < width; xx++) {
+        int rgb;
+        if (bits != 8) {
+          // Pixels are stored as blue, green, red (and, for 32 bits, unused) bytes
+          rgb = (row[idx + 2] & 0xFF) << 16 | (row[idx + 1] & 0xFF) << 8 | (row[idx] & 0xFF);
+          idx += bits >> 3;
+        } else {
+          rgb = palette[row[idx++] & 0xFF];
+        }
+        if (pixels[base + xx] != rgb) {
+          pixels[base + xx] = rgb;
+          if (first < 0) {
+            first = xx;
+          }
+          last = xx;
+        }
+      }
+    }
+    if (first >= 0) {
+      minX = Math.min(minX, first);
+      maxX = Math.max(maxX, last);
+      minY = Math.min(minY, yy);
+      maxY = Math.max(maxY, yy);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ *  Pool of reusable little-endian direct ByteBuffers bucketed by power of 2 capacity.  Direct buffers are
+ *  expensive to allocate and are only freed by the GC, so the USB transport borrows them from here
+ *  instead of allocating a new one for every packet.
+ */
+
+class BufferPool {
+  static final BufferPool       shared = new BufferPool();
+  private static final int      MIN_SHIFT = 6;                    // Smallest bucket is 64 bytes
+  private static final int      MAX_FREE = 4;                     // Buffers kept per bucket
+  private final ArrayDeque<ByteBuffer>[] free;
+  private long                  allocated;
+
+  @SuppressWarnings("unchecked")
+  BufferPool () {
+    free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[31 - MIN_SHIFT];
+    for (int ii = 0; ii < free.length; ii++) {
+      free[ii] = new ArrayDeque<>();
+    }
+  }
+
+  private static int bucket (int size) {
+    int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_SHIFT) - 1);
+    return shift - MIN_SHIFT;
+  }
+
+  /**
+   *  Returns a cleared buffer with a capacity of at least size bytes
+   */
+  synchronized ByteBuffer acquire (int size) {
+    int idx = bucket(size);
+    ByteBuffer buf = free[idx].pollFirst();
+    if (buf == null) {
+      buf = ByteBuffer.allocateDirect(1 << (idx + MIN_SHIFT)).order(ByteOrder.LITTLE_ENDIAN);
+      allocated += buf.capacity();
+    }
+    buf.clear();
+    return buf;
+  }
+
+  synchronized void release (ByteBuffer buf) {
+    if (buf != null && buf.isDirect() && Integer.bitCount(buf.capacity()) == 1) {
+      int idx = bucket(buf.capacity());
+      if (free[idx].size() < MAX_FREE) {
+        free[idx].addFirst(buf);
+      }
+    }
+  }
+
+  /**
+   *  Total bytes of direct memory this pool has allocated (a steady value means buffers are being reused)
+   */
+  synchronized long getAllocated () {
+    return allocated;
+  }
+}
@@ -0,0 +1,362 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.prefs.Preferences;
+
+/**
+ *  Append-only archive of waveform captures.  Each record holds the raw sample data from :WAVeform:DATA?
+ *  along with the device and channel it came from, the time it was taken and the waveform preamble needed
+ *  to convert the samples into volts and seconds.  An index of record offsets is written after the last
+ *  record when the archive is closed (and removed when a record is next appended, then rewritten after the
+ *  new records when the archive is closed again), so record N is found with one lookup and read through a
+ *  memory mapping, however many records precede it.  If the index is missing (such as after a crash) the
+ *  records are scanned to rebuild it.  All values are little endian.  File layout:
+ *
+ *    File header   MAGIC (8 bytes), reserved (8 bytes)
+ *    Record        REC_MAGIC, header size (int), data length (long), time (long, ms since the epoch),
+ *                  the preamble (format, type, points, count, x increment, origin and reference, then y
+ *                  increment, origin and reference), device and channel (UTF-8, each preceded by a short
+ *                  length), padding to a multiple of 8, then the data, padded to a multiple of 8
+ *    ...
+ *    Index         record offsets (long each)
+ *    Footer        index offset (long), record count (long), IDX_MAGIC (long)
+ */
+
+class CaptureArchive implements Closeable {
+  private static final long MAGIC = 0x01005041434C4752L;    // "RGLCAP\0\1"
+  private static final long IDX_MAGIC = 0x5845444E494C4752L; // "RGLINDEX"
+  private static final int  REC_MAGIC = 0x43455252;         // "RREC"
+  private static final int  FIXED = 96;                     // Size of the fixed part of a record header
+  private static final int  FOOTER = 24;
+  private final FileChannel channel;
+  private final boolean     readOnly;
+  private long[]            offsets = new long[64];
+  private int               count;
+  private long              end;                            // Where the next record goes
+  private boolean           dirty;
+
+  /**
+   *  Archive record.  data is a read-only mapping of the samples, which is valid until the archive is closed
+   */
+  static class Record {
+    final String        device, channel;
+    final long          time;
+    final WavePreamble  preamble;
+    final ByteBuffer    data;
+
+    Record (String device, String channel, long time, WavePreamble preamble, ByteBuffer data) {
+      this.device = device;
+      this.channel = channel;
+      this.time = time;
+      this.preamble = preamble;
+      this.data = data;
+    }
+  }
+
+  /**
+   *  Opens file for appending, creating it if it doesn't exist
+   */
+  CaptureArchive (File file) throws IOException {
+    this(file, false);
+  }
+
+  CaptureArchive (File file, boolean readOnly) throws IOException {
+    this.readOnly = readOnly;
+    channel = readOnly ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                       : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                          StandardOpenOption.CREATE);
+    try {
+      if (channel.size() == 0 && !readOnly) {
+        ByteBuffer hdr = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        hdr.putLong(MAGIC).putLong(0).flip();
+        write(hdr, 0);
+        end = 16;
+      } else {
+        ByteBuffer hdr = read(0, 16);
+        if (hdr.remaining() < 16 || hdr.getLong(0) != MAGIC) {
+          throw new IOException(file + " is not a capture archive");
+        }
+        if (!readIndex()) {
+          rebuildIndex();
+        }
+      }
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  /**
+   *  Loads the index from the footer, if present and consistent with the file size
+   */
+  private boolean readIndex () throws IOException {
+    long size = channel.size();
+    if (size < 16 + FOOTER) {
+      return false;
+    }
+    ByteBuffer footer = read(size - FOOTER, FOOTER);
+    long idxOffset = footer.getLong(0);
+    long num = footer.getLong(8);
+    if (footer.getLong(16) != IDX_MAGIC || num < 0 || idxOffset < 16 || idxOffset + num * 8 + FOOTER != size) {
+      return false;
+    }
+    count = (int) num;
+    offsets = Arrays.copyOf(offsets, Math.max(64, count * 2));
+    if (count > 0) {
+      MappedByteBuffer idx = channel.map(FileChannel.MapMode.READ_ONLY, idxOffset, count * 8L);
+      idx.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(offsets, 0, count);
+    }
+    end = idxOffset;
+    return true;
+  }
+
+  /**
+   *  Walks the record headers from the start of the file, stopping at the first incomplete record
+   */
+  private void rebuildIndex () throws IOException {
+    long size = channel.size();
+    long pos = 16;
+    count = 0;
+    while (pos + FIXED <= size) {
+      ByteBuffer hdr = read(pos, 16);
+      int hdrSize = hdr.getInt(4);
+      long length = hdr.getLong(8);
+      long next = pos + hdrSize + pad(length);
+      if (hdr.getInt(0) != REC_MAGIC || hdrSize < FIXED || length < 0 || next > size) {
+        break;
+      }
+      addOffset(pos);
+      pos = next;
+    }
+    end = pos;
+    dirty = !readOnly;
+  }
+
+  private void addOffset (long offset) {
+    if (count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+    }
+    offsets[count++] = offset;
+  }
+
+  private static long pad (long size) {
+    return (size + 7) & ~7L;
+  }
+
+  private ByteBuffer read (long pos, int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    while (buf.hasRemaining() && channel.read(buf, pos + buf.position()) >= 0) {
+      // Keep reading
+    }
+    buf.flip();
+    return buf;
+  }
+
+  private void write (ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      pos += channel.write(buf, pos);
+    }
+  }
+
+  /**
+   *  @return number of records in the archive
+   */
+  synchronized int size () {
+    return count;
+  }
+
+  /**
+   *  Reads record idx (0 is the first record)
+   */
+  synchronized Record get (int idx) throws IOException {
+    if (idx < 0 || idx >= count) {
+      throw new IndexOutOfBoundsException("Record " + idx + " of " + count);
+    }
+    long pos = offsets[idx];
+    ByteBuffer hdr = read(pos, FIXED);
+    int hdrSize = hdr.getInt(4);
+    long length = hdr.getLong(8);
+    if (hdr.getInt(0) != REC_MAGIC || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid record " + idx + " at offset " + pos);
+    }
+    ByteBuffer names = read(pos + FIXED, hdrSize - FIXED);
+    String device = getString(names);
+    String chan = getString(names);
+    WavePreamble pre = new WavePreamble(hdr.getInt(24), hdr.getInt(28), hdr.getLong(32), hdr.getInt(40),
+                                        hdr.getDouble(48), hdr.getDouble(56), hdr.getDouble(64),
+                                        hdr.getDouble(72), hdr.getDouble(80), hdr.getDouble(88));
+    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, pos + hdrSize, length).asReadOnlyBuffer();
+    return new Record(device, chan, hdr.getLong(16), pre, data);
+  }
+
+  private static String getString (ByteBuffer buf) {
+    byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putString (ByteBuffer buf, String str) {
+    byte[] bytes = (str != null ? str : "").getBytes(StandardCharsets.UTF_8);
+    buf.putShort((short) bytes.length).put(bytes);
+  }
+
+  private ByteBuffer header (String device, String chan, long time, WavePreamble pre, long length) {
+    int size = (int) pad(FIXED + 4 + device.length() * 3 + chan.length() * 3);
+    ByteBuffer hdr = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    hdr.putInt(REC_MAGIC).putInt(0).putLong(length).putLong(time);
+    hdr.putInt(pre.format).putInt(pre.type).putLong(pre.points).putInt(pre.count).putInt(0);
+    hdr.putDouble(pre.xIncrement).putDouble(pre.xOrigin).putDouble(pre.xReference);
+    hdr.putDouble(pre.yIncrement).putDouble(pre.yOrigin).putDouble(pre.yReference);
+    putString(hdr, device);
+    putString(hdr, chan);
+    hdr.position((int) pad(hdr.position()));
+    hdr.putInt(4, hdr.position());
+    hdr.flip();
+    return hdr;
+  }
+
+  /**
+   *  Appends a record holding the bytes remaining in data
+   *  @param pre preamble describing data (WavePreamble.raw() if not known)
+   *  @return index of the new record
+   */
+  synchronized int append (String device, String chan, long time, WavePreamble pre, ByteBuffer data) throws IOException {
+    checkWritable();
+    dropIndex();
+    ByteBuffer hdr = header(device, chan, time, pre, data.remaining());
+    long pos = end;
+    long dataPos = pos + hdr.remaining();
+    long next = dataPos + pad(data.remaining());
+    write(hdr, pos);
+    write(data.duplicate(), dataPos);
+    return commit(pos, next);
+  }
+
+  /**
+   *  Returns a Sink that streams a block response straight into a new record, so a large capture never
+   *  has to be held in memory.  The record is only added to the index when the block is complete.
+   */
+  BlockDecoder.Sink appender (String device, String chan, long time, WavePreamble pre) {
+    return new BlockDecoder.Sink() {
+      private long  pos, dataPos, length;
+
+      public void begin (long size) throws IOException {
+        synchronized (CaptureArchive.this) {
+          checkWritable();
+          dropIndex();
+          ByteBuffer hdr = header(device, chan, time, pre, -1);   // Length is set when complete
+          pos = end;
+          dataPos = pos + hdr.remaining();
+          length = 0;
+          write(hdr, pos);
+        }
+      }
+
+      public void accept (ByteBuffer data) throws IOException {
+        synchronized (CaptureArchive.this) {
+          int size = data.remaining();
+          write(data, dataPos + length);
+          length += size;
+        }
+      }
+
+      public void end () throws IOException {
+        synchronized (CaptureArchive.this) {
+          ByteBuffer len = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+          len.putLong(0, length);
+          write(len, pos + 8);
+          commit(pos, dataPos + pad(length));
+        }
+      }
+    };
+  }
+
+  private void checkWritable () throws IOException {
+    if (readOnly) {
+      throw new IOException("Archive is open read only");
+    }
+  }
+
+  /**
+   *  Removes the index and footer (or the remains of an incomplete record) after the last record before a
+   *  new record is written over them, so that if the archive isn't closed the stale footer can't be taken
+   *  for the index of the records that follow it, and the records are scanned instead
+   */
+  private void dropIndex () throws IOException {
+    if (channel.size() > end) {
+      channel.truncate(end);
+    }
+  }
+
+  private int commit (long pos, long next) {
+    addOffset(pos);
+    end = next;
+    dirty = true;
+    return count - 1;
+  }
+
+  /**
+   *  Writes the index and footer after the last record
+   */
+  synchronized void flush () throws IOException {
+    if (!dirty) {
+      return;
+    }
+    ByteBuffer idx = ByteBuffer.allocate(count * 8 + FOOTER).order(ByteOrder.LITTLE_ENDIAN);
+    for (int ii = 0; ii < count; ii++) {
+      idx.putLong(offsets[ii]);
+    }
+    idx.putLong(end).putLong(count).putLong(IDX_MAGIC).flip();
+    write(idx, end);
+    channel.truncate(end + count * 8L + FOOTER);
+    channel.force(false);
+    dirty = false;
+  }
+
+  public synchronized void close () throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   *  Lists the records in an archive, or shows record n in a WaveViewer:
+   *
+   *    java -cp RglComm.jar CaptureArchive file [n]
+   */
+  public static void main (String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Usage: CaptureArchive file [n]");
+      return;
+    }
+    CaptureArchive archive = new CaptureArchive(new File(args[0]), true);
+    if (args.length > 1) {
+      Record rec = archive.get(Integer.parseInt(args[1]));
+      WaveViewer viewer = new WaveViewer(Preferences.userRoot().node(RglComm.class.getName()), rec.data,
+                                         "WaveViewer - " + rec.device + " " + rec.channel);
+      viewer.device = rec.device;
+      viewer.channel = rec.channel;
+      viewer.setPreamble(rec.preamble);
+      viewer.setDefaultCloseOperation(javax.swing.JFrame.EXIT_ON_CLOSE);
+      return;
+    }
+    SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    for (int ii = 0; ii < archive.size(); ii++) {
+      Record rec = archive.get(ii);
+      System.out.printf("%5d  %s  %-12s %-6s %10d bytes  pre: %s%n", ii, fmt.format(new Date(rec.time)), rec.device,
+                        rec.channel, rec.data.remaining(), rec.preamble);
+    }
+    archive.close();
+  }
+}
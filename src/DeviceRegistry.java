@@ -0,0 +1,281 @@
+import org.usb4java.*;
+
+import java.util.*;
+
+import static org.usb4java.LibUsb.*;
+
+/**
+ *  Shared device discovery service.  The libusb Context is initialized once, the device list is walked
+ *  once and the interface and endpoint numbers (and max packet size) of each device are parsed from its
+ *  descriptors when it is first seen and then cached, so opening a known device skips the descriptor walk.
+ *  Where libusb supports hotplug notification the cache is kept up to date as devices arrive and leave,
+ *  otherwise the device list is walked again when a device can't be found in the cache.  String descriptors
+ *  (manufacturer, product and serial number) need the device to be opened, so they are read the first time
+ *  they're needed and also cached, which lets several identical instruments be told apart by serial number.
+ */
+
+class DeviceRegistry {
+  private static DeviceRegistry     shared;
+  private final Context             context = new Context();
+  private final Map<String,Info>    devices = new LinkedHashMap<>();
+  private HotplugCallbackHandle     hotplug;
+  private Thread                    events;
+  private long                      scans, hotplugEvents;
+
+  /**
+   *  Device, and the details of its USBTMC interface taken from its descriptors
+   */
+  static class Info {
+    final Device  device;
+    final String  key;
+    final short   vend, prod;
+    final byte    bClass;
+    final byte    iManufacturer, iProduct, iSerial;
+    byte          iFace = -1, inEnd, outEnd, intEnd;     // intEnd is 0 if there's no interrupt-IN endpoint
+    short         maxPkt;
+    String        manufacturer, product, serial;
+
+    Info (Device device, String key, DeviceDescriptor desc) {
+      this.device = device;
+      this.key = key;
+      vend = desc.idVendor();
+      prod = desc.idProduct();
+      bClass = desc.bDeviceClass();
+      iManufacturer = desc.iManufacturer();
+      iProduct = desc.iProduct();
+      iSerial = desc.iSerialNumber();
+    }
+
+    /**
+     *  @return true if the device has a pair of bulk endpoints (needed by USBIO)
+     */
+    boolean hasBulk () {
+      return iFace >= 0;
+    }
+
+    public String toString () {
+      return String.format("%04X:%04X %s", vend, prod, serial != null ? serial : "");
+    }
+  }
+
+  /**
+   *  @return the registry, which is created (and the device list walked) on first use
+   */
+  static synchronized DeviceRegistry shared () {
+    if (shared == null) {
+      shared = new DeviceRegistry();
+    }
+    return shared;
+  }
+
+  private DeviceRegistry () {
+    int result = LibUsb.init(context);
+    if (result < 0) {
+      throw new LibUsbException("Unable to initialize libusb", result);
+    }
+    if (LibUsb.hasCapability(CAP_HAS_HOTPLUG)) {
+      // Register before the first scan so no arrival can be missed (add() ignores devices already known)
+      hotplug = new HotplugCallbackHandle();
+      result = LibUsb.hotplugRegisterCallback(context, HOTPLUG_EVENT_DEVICE_ARRIVED | HOTPLUG_EVENT_DEVICE_LEFT,
+                                              HOTPLUG_NO_FLAGS, HOTPLUG_MATCH_ANY, HOTPLUG_MATCH_ANY,
+                                              HOTPLUG_MATCH_ANY, this::hotplugEvent, null, hotplug);
+      if (result == LibUsb.SUCCESS) {
+        startEvents();
+      } else {
+        hotplug = null;
+      }
+    }
+    refresh();
+  }
+
+  /**
+   *  Starts the thread that runs libusb's event loop on the shared Context, if it's not already running.  It
+   *  is the Context's only event handler, and delivers both hotplug notifications and the completions of
+   *  every USBIO session's asynchronous transfers
+   */
+  synchronized void startEvents () {
+    if (events != null && events.isAlive()) {
+      return;
+    }
+    events = new Thread(() -> {
+      while (true) {
+        int error = LibUsb.handleEventsTimeout(context, 250000);
+        if (error != LibUsb.SUCCESS && error != ERROR_INTERRUPTED) {
+          break;
+        }
+      }
+    }, "DeviceRegistry events");
+    events.setDaemon(true);
+    events.start();
+  }
+
+  private static String key (Device device) {
+    return LibUsb.getBusNumber(device) + "-" + LibUsb.getPortNumber(device) + ":" + LibUsb.getDeviceAddress(device);
+  }
+
+  private int hotplugEvent (Context ctx, Device device, int event, Object userData) {
+    synchronized (this) {
+      hotplugEvents++;
+      if (event == HOTPLUG_EVENT_DEVICE_ARRIVED) {
+        add(device);
+      } else {
+        Info info = devices.remove(key(device));
+        if (info != null) {
+          LibUsb.unrefDevice(info.device);
+        }
+      }
+    }
+    return 0;                       // Keep the callback registered
+  }
+
+  /**
+   *  Walks the device list, adding any devices not already known and dropping any that have gone
+   */
+  synchronized void refresh () {
+    DeviceList list = new DeviceList();
+    int result = LibUsb.getDeviceList(context, list);
+    if (result < 0) {
+      throw new LibUsbException("Unable to get device list", result);
+    }
+    try {
+      scans++;
+      Set<String> present = new HashSet<>();
+      for (Device device : list) {
+        present.add(key(device));
+        add(device);
+      }
+      Iterator<Info> iter = devices.values().iterator();
+      while (iter.hasNext()) {
+        Info info = iter.next();
+        if (!present.contains(info.key)) {
+          iter.remove();
+          LibUsb.unrefDevice(info.device);
+        }
+      }
+    } finally {
+      LibUsb.freeDeviceList(list, true);
+    }
+  }
+
+  /**
+   *  Parses the descriptors of a device not seen before and caches the result.  The device is referenced
+   *  so that it stays valid after the device list it came from is freed
+   */
+  private void add (Device device) {
+    String key = key(device);
+    if (devices.containsKey(key)) {
+      return;
+    }
+    DeviceDescriptor desc = new DeviceDescriptor();
+    if (LibUsb.getDeviceDescriptor(device, desc) < 0 || desc.bDeviceClass() == CLASS_HUB) {
+      return;
+    }
+    Info info = new Info(LibUsb.refDevice(device), key, desc);
+    byte numConfigs = desc.bNumConfigurations();
+    for (byte ii = 0; ii < numConfigs && !info.hasBulk(); ii++) {
+      ConfigDescriptor cDesc = new ConfigDescriptor();
+      if (LibUsb.getConfigDescriptor(device, ii, cDesc) >= 0) {
+        try {
+          for (Interface iface : cDesc.iface()) {
+            for (InterfaceDescriptor iDesc : iface.altsetting()) {
+              byte inEnd = 0, outEnd = 0, intEnd = 0;
+              short maxPkt = 0;
+              for (EndpointDescriptor eDesc : iDesc.endpoint()) {
+                byte endAdd = eDesc.bEndpointAddress();
+                if ((eDesc.bmAttributes() & 0x03) == 2) {
+                  if ((endAdd & 0x80) != 0) {
+                    inEnd = endAdd;
+                  } else {
+                    outEnd = endAdd;
+                    maxPkt = eDesc.wMaxPacketSize();
+                  }
+                } else if ((eDesc.bmAttributes() & 0x03) == 3 && (endAdd & 0x80) != 0) {
+                  intEnd = endAdd;          // USB488 interrupt-IN endpoint, for SRQ and status byte notifications
+                }
+              }
+              if (inEnd != 0 && outEnd != 0 && !info.hasBulk()) {
+                info.iFace = iDesc.bInterfaceNumber();
+                info.inEnd = inEnd;
+                info.outEnd = outEnd;
+                info.intEnd = intEnd;
+                info.maxPkt = maxPkt;
+              }
+            }
+          }
+        } finally {
+          LibUsb.freeConfigDescriptor(cDesc);
+        }
+      }
+    }
+    devices.put(key, info);
+  }
+
+  /**
+   *  @return devices with bulk endpoints matching vend and prod, and serial, unless it's null (devices
+   *  whose serial number has not been read yet are included).  If there are none, and hotplug is not
+   *  available, the device list is walked again first
+   */
+  List<Info> find (short vend, short prod, String serial) {
+    List<Info> list = match(vend, prod, serial);
+    if (list.isEmpty() && hotplug == null) {
+      refresh();
+      list = match(vend, prod, serial);
+    }
+    return list;
+  }
+
+  private synchronized List<Info> match (short vend, short prod, String serial) {
+    List<Info> list = new ArrayList<>();
+    for (Info info : devices.values()) {
+      if (info.vend == vend && info.prod == prod && info.hasBulk() &&
+          (serial == null || info.serial == null || serial.equals(info.serial))) {
+        list.add(info);
+      }
+    }
+    return list;
+  }
+
+  /**
+   *  @return snapshot of the devices currently known
+   */
+  synchronized List<Info> getDevices () {
+    if (hotplug == null) {
+      refresh();
+    }
+    return new ArrayList<>(devices.values());
+  }
+
+  /**
+   *  Reads and caches the device's string descriptors, using handle if it's not null (and the device is
+   *  already open), or by opening the device briefly
+   *  @return false if the device could not be opened
+   */
+  static synchronized boolean readStrings (Info info, DeviceHandle handle) {
+    if (info.serial != null) {
+      return true;
+    }
+    boolean open = handle == null;
+    if (open) {
+      handle = new DeviceHandle();
+      if (LibUsb.open(info.device, handle) < 0) {
+        return false;
+      }
+    }
+    try {
+      info.manufacturer = LibUsb.getStringDescriptor(handle, info.iManufacturer);
+      info.product = LibUsb.getStringDescriptor(handle, info.iProduct);
+      String serial = LibUsb.getStringDescriptor(handle, info.iSerial);
+      info.serial = serial != null ? serial : "";
+    } finally {
+      if (open) {
+        LibUsb.close(handle);
+      }
+    }
+    return true;
+  }
+
+  synchronized String getStats () {
+    return String.format("Registry: %d devices, %d scans, %d hotplug events (hotplug %s)", devices.size(), scans,
+                         hotplugEvents, hotplug != null ? "on" : "not supported");
+  }
+}
@@ -0,0 +1,86 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Runs tasks on one worker thread per device, so commands sent to the same device are executed in the
+ *  order they were submitted while commands for different devices run in parallel.  Nothing is dropped
+ *  when a device is busy: tasks wait in the device's queue and the number waiting can be queried.
+ */
+
+class DeviceScheduler {
+  private final Map<String,Worker> workers = new HashMap<>();
+
+  private static class Worker {
+    final ExecutorService executor;
+    final AtomicInteger   pending = new AtomicInteger();
+
+    Worker (String device) {
+      executor = Executors.newSingleThreadExecutor(run -> {
+        Thread thread = new Thread(run, "Worker: " + device);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  private synchronized Worker getWorker (String device) {
+    return workers.computeIfAbsent(device, Worker::new);
+  }
+
+  /**
+   *  Queues task on device's worker.  As nothing waits for the result, anything task throws is printed
+   *  @return number of tasks ahead of this one (0 if it will start immediately)
+   */
+  int submit (String device, Runnable task) {
+    Worker worker = getWorker(device);
+    int ahead = worker.pending.getAndIncrement();
+    worker.executor.execute(() -> {
+      try {
+        task.run();
+      } catch (Throwable ex) {
+        ex.printStackTrace();
+      } finally {
+        worker.pending.decrementAndGet();
+      }
+    });
+    return ahead;
+  }
+
+  /**
+   *  Queues task on device's worker and returns a Future for its result
+   */
+  <T> Future<T> submit (String device, Callable<T> task) {
+    Worker worker = getWorker(device);
+    worker.pending.incrementAndGet();
+    return worker.executor.submit(track(worker, task));
+  }
+
+  private static <T> Callable<T> track (Worker worker, Callable<T> task) {
+    return () -> {
+      try {
+        return task.call();
+      } finally {
+        worker.pending.decrementAndGet();
+      }
+    };
+  }
+
+  /**
+   *  @return number of tasks queued or running for device
+   */
+  int getPending (String device) {
+    Worker worker;
+    synchronized (this) {
+      worker = workers.get(device);
+    }
+    return worker != null ? worker.pending.get() : 0;
+  }
+
+  synchronized void shutdown () {
+    for (Worker worker : workers.values()) {
+      worker.executor.shutdown();
+    }
+  }
+}
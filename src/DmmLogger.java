@@ -0,0 +1,153 @@
+import java.io.IOException;
+
+/**
+ *  Continuous logging mode for a multimeter (such as the DM3058).  The meter is configured once (by default
+ *  with DEFAULT_SETUP) then the reading query (by default :READ?, which takes a reading without changing
+ *  the configuration, unlike :MEAS?) is sent in a tight loop on an open session, with no fixed delays, so
+ *  the rate is limited only by the meter and the link.  A query that returns several comma separated readings (such as one
+ *  that fetches a buffer of triggered samples) adds each of them.  Readings are parsed straight from the
+ *  receive buffer by a reused Response, without creating Strings.  Readings go into a ReadingRing and the
+ *  readings per second achieved over the last report interval is tracked.  Overload readings (9.9E37) are
+ *  counted but otherwise skipped, so they don't distort the statistics.  If a TrendStore is set, each
+ *  reading is also appended to it, so logs lasting days can be kept and reviewed.
+ */
+
+class DmmLogger {
+  static final String       DEFAULT_SETUP = ":CONF:VOLT:DC";
+  static final String       DEFAULT_QUERY = ":READ?";
+  private static final double OVERLOAD = 9.9E37;            // Reported by SCPI instruments for an overload
+  private final USBTMC      tmc;
+  private final String      query;
+  private final ReadingRing readings;
+  private final Response    response = new Response();    // Reused, so parsing readings creates no garbage
+  private TrendStore        trends;
+  private String            trendName;
+  private TrendStore.Series[] series = new TrendStore.Series[0];    // One for each reading in a response
+  private volatile boolean  stopped;
+  private volatile double   rate;
+  private double            last;
+  private long              overloads;
+
+  interface Listener {
+    /**
+     *  Called once per report interval, and when logging finishes
+     */
+    void update (DmmLogger logger);
+  }
+
+  /**
+   *  @param query query that returns one or more comma separated readings
+   *  @param capacity number of recent readings to keep
+   */
+  DmmLogger (USBTMC tmc, String query, int capacity) {
+    this.tmc = tmc;
+    this.query = query.endsWith("\n") ? query : query + '\n';
+    readings = new ReadingRing(capacity);
+  }
+
+  /**
+   *  Sets the store the readings are also appended to, in the series called name (or, if the query returns
+   *  several readings, name.0, name.1, ...)
+   */
+  void setTrend (TrendStore trends, String name) {
+    this.trends = trends;
+    trendName = name;
+    series = new TrendStore.Series[0];
+  }
+
+  /**
+   *  Sends setup (if not null) then reads until count readings have been taken (or forever, if count is
+   *  0) or stop() is called
+   */
+  void run (String setup, long count, long reportMillis, Listener listener) {
+    stopped = false;
+    if (setup != null && !setup.isEmpty()) {
+      tmc.write(setup.endsWith("\n") ? setup : setup + '\n');
+    }
+    long reportNanos = reportMillis * 1000000L;
+    long start = readings.getCount();
+    long mark = System.nanoTime();
+    long markCount = start;
+    while (!stopped && (count <= 0 || readings.getCount() - start < count)) {
+      int type = response.parse(tmc.query(query));
+      long now = System.nanoTime();
+      if (!response.isNumber() && type != Response.LIST) {
+        throw new IllegalStateException("Not a reading: " + response.getText());
+      }
+      int size = response.getCount();
+      if (trends != null && series.length != size) {
+        openSeries(size);
+      }
+      long time = System.currentTimeMillis();
+      for (int ii = 0; ii < size; ii++) {
+        double value = response.get(ii);
+        if (Math.abs(value) >= OVERLOAD) {
+          overloads++;
+          continue;
+        }
+        last = value;
+        readings.add(last, now);
+        if (trends != null) {
+          series[ii].append(time, last);
+        }
+      }
+      if (now - mark >= reportNanos) {
+        rate = (readings.getCount() - markCount) * 1e9 / (now - mark);
+        mark = now;
+        markCount = readings.getCount();
+        if (listener != null) {
+          listener.update(this);
+        }
+      }
+    }
+    if (rate == 0) {
+      rate = (readings.getCount() - markCount) * 1e9 / Math.max(1, System.nanoTime() - mark);
+    }
+    if (listener != null) {
+      listener.update(this);
+    }
+  }
+
+  private void openSeries (int size) {
+    series = new TrendStore.Series[size];
+    try {
+      for (int ii = 0; ii < size; ii++) {
+        series[ii] = trends.series(size > 1 ? trendName + "." + ii : trendName);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException("Unable to open trend " + trendName, ex);
+    }
+  }
+
+  void stop () {
+    stopped = true;
+  }
+
+  ReadingRing getReadings () {
+    return readings;
+  }
+
+  double getLast () {
+    return last;
+  }
+
+  /**
+   *  @return readings per second over the last report interval
+   */
+  double getRate () {
+    return rate;
+  }
+
+  /**
+   *  @return number of overload readings skipped
+   */
+  long getOverloads () {
+    return overloads;
+  }
+
+  String getStatus () {
+    return String.format("n=%d  %.1f rdg/s  last=%.9g  min=%.9g  max=%.9g  mean=%.9g  sd=%.3g%s", readings.getCount(),
+                         rate, last, readings.getMin(), readings.getMax(), readings.getMean(), readings.getStdDev(),
+                         overloads > 0 ? "  overloads=" + overloads : "");
+  }
+}
@@ -3,17 +3,17 @@ import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.prefs.Preferences;
 
 class ImageViewer extends JFrame {
   static class Surface extends JPanel {
     BufferedImage img;
 
-    Surface(byte[] data) throws Exception {
-      ByteArrayInputStream bis = new ByteArrayInputStream(data);
-      img = ImageIO.read(bis);
+    Surface(ByteBuffer data) throws Exception {
+      img = ImageIO.read(new ByteBufferInputStream(data.duplicate()));
       setPreferredSize(new Dimension(img.getWidth(null), img.getHeight(null)));
     }
 
@@ -24,7 +24,38 @@ class ImageViewer extends JFrame {
     }
   }
 
-  ImageViewer (Preferences prefs, byte[] data) throws Exception {
+  /**
+   *  Lets ImageIO read directly from the response buffer rather than from a copy of it
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream (ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read () {
+      return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read (byte[] dst, int off, int len) {
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buf.remaining());
+      buf.get(dst, off, len);
+      return len;
+    }
+
+    @Override
+    public int available () {
+      return buf.remaining();
+    }
+  }
+
+  ImageViewer (Preferences prefs, ByteBuffer data) throws Exception {
     setTitle("ImageViewer");
     Surface surface = new Surface(data);
     add(surface);
@@ -0,0 +1,87 @@
+/**
+ *  Fixed size histogram of latencies with log-linear buckets, in the style of HdrHistogram: each power of
+ *  two range of microseconds is split into SUB equal buckets, so any value is recorded to within about 6%
+ *  (1/SUB) from 1 us to over an hour in a few KB, and recording a value is O(1) and allocation free.
+ */
+
+class LatencyHistogram {
+  private static final int  SUB = 16;                 // Buckets per power of two
+  private static final int  BITS = 4;                 // log2(SUB)
+  private final long[]      counts = new long[SUB * 34];
+  private long              count, total, max, min = Long.MAX_VALUE;
+
+  private static int index (long micros) {
+    if (micros < SUB) {
+      return (int) micros;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - BITS;
+    return (shift + 1) * SUB + (int) ((micros >> shift) - SUB);
+  }
+
+  /**
+   *  @return the largest value that falls in bucket idx
+   */
+  private static long upper (int idx) {
+    if (idx < SUB) {
+      return idx;
+    }
+    int shift = idx / SUB - 1;
+    return ((long) (SUB + idx % SUB + 1) << shift) - 1;
+  }
+
+  synchronized void record (long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts[Math.min(index(micros), counts.length - 1)]++;
+    count++;
+    total += micros;
+    max = Math.max(max, micros);
+    min = Math.min(min, micros);
+  }
+
+  synchronized void reset () {
+    java.util.Arrays.fill(counts, 0);
+    count = total = max = 0;
+    min = Long.MAX_VALUE;
+  }
+
+  synchronized long getCount () {
+    return count;
+  }
+
+  /**
+   *  @param percent percentile wanted, such as 99.9
+   *  @return value (in microseconds) that percent of the recorded values are less than or equal to
+   */
+  synchronized long getPercentile (double percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(count * percent / 100));
+    long sum = 0;
+    for (int ii = 0; ii < counts.length; ii++) {
+      sum += counts[ii];
+      if (sum >= target) {
+        return Math.min(upper(ii), max);
+      }
+    }
+    return max;
+  }
+
+  synchronized long getMax () {
+    return max;
+  }
+
+  synchronized double getMean () {
+    return count > 0 ? (double) total / count : 0;
+  }
+
+  /**
+   *  @return summary of the distribution, in milliseconds
+   */
+  @Override
+  public synchronized String toString () {
+    return String.format("n=%d min=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f ms", count,
+                         count > 0 ? min / 1e3 : 0, getPercentile(50) / 1e3, getPercentile(90) / 1e3,
+                         getPercentile(99) / 1e3, getPercentile(99.9) / 1e3, max / 1e3);
+  }
+}
@@ -0,0 +1,210 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *  Scrolling log of lines which, unlike a JTextArea, uses a fixed amount of memory however long it runs.
+ *  The most recent CAPACITY lines are kept in a ring which backs a JList, and as the JList only renders
+ *  the rows that are visible (every row is the same height) the cost of adding a line does not depend
+ *  on how many are held.  append() can be called from any thread: lines are queued and a Swing Timer adds
+ *  them to the list in batches, at most once every FLUSH_MS, so a burst of lines costs one update.  Lines
+ *  pushed out of the ring are written to a log file, which is rolled over when it reaches SPILL_SIZE
+ *  bytes (keeping SPILL_FILES old files), so the full history of a long session is still available.
+ */
+
+class LogView extends JScrollPane {
+  static final int                CAPACITY = 10000;       // Lines
+  private static final int        FLUSH_MS = 50;
+  private static final long       SPILL_SIZE = 8 * 1024 * 1024;
+  private static final int        SPILL_FILES = 4;
+  private final Ring              model = new Ring();
+  private final JList<String>     list = new JList<>(model);
+  private final FontMetrics       metrics;
+  private final Timer             timer;
+  private final ArrayDeque<String> pending = new ArrayDeque<>();
+  private final List<String>      overflow = new ArrayList<>();   // Queued lines pushed out before display
+  private final File              spillFile;
+  private final ExecutorService   spiller;
+  private Writer                  spill;
+  private long                    spillSize;
+  private int                     width;
+
+  /**
+   *  Ring of the most recent lines, oldest first
+   */
+  private static class Ring extends AbstractListModel<String> {
+    private final String[]  lines = new String[CAPACITY];
+    private int             head, size;
+
+    public int getSize () {
+      return size;
+    }
+
+    public String getElementAt (int idx) {
+      return lines[(head - size + idx + lines.length) % lines.length];
+    }
+
+    /**
+     *  Adds lines, moving any that are pushed out of the ring to evicted
+     */
+    void addAll (List<String> add, List<String> evicted) {
+      int removed = 0;
+      for (String line : add) {
+        if (size == lines.length) {
+          evicted.add(lines[head]);
+          removed++;
+        } else {
+          size++;
+        }
+        lines[head] = line;
+        head = (head + 1) % lines.length;
+      }
+      if (removed > 0) {
+        fireIntervalRemoved(this, 0, removed - 1);
+      }
+      if (!add.isEmpty()) {
+        fireIntervalAdded(this, size - Math.min(add.size(), size), size - 1);
+      }
+    }
+
+    void clear (List<String> evicted) {
+      for (int ii = 0; ii < size; ii++) {
+        evicted.add(getElementAt(ii));
+      }
+      if (size > 0) {
+        int last = size - 1;
+        head = size = 0;
+        Arrays.fill(lines, null);
+        fireIntervalRemoved(this, 0, last);
+      }
+    }
+  }
+
+  /**
+   *  @param spillFile file that lines pushed out of the view are appended to
+   */
+  LogView (Font font, int rows, int columns, File spillFile) {
+    this.spillFile = spillFile;
+    list.setFont(font);
+    metrics = list.getFontMetrics(font);
+    list.setFixedCellHeight(metrics.getHeight());
+    width = metrics.charWidth('m') * columns;
+    list.setFixedCellWidth(width);
+    list.setVisibleRowCount(rows);
+    list.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+    setViewportView(list);
+    setVerticalScrollBarPolicy(VERTICAL_SCROLLBAR_AS_NEEDED);
+    setHorizontalScrollBarPolicy(HORIZONTAL_SCROLLBAR_AS_NEEDED);
+    timer = new Timer(FLUSH_MS, ev -> flush());
+    timer.setRepeats(false);
+    spiller = Executors.newSingleThreadExecutor(run -> {
+      Thread thread = new Thread(run, "LogView spill");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   *  Queues text, which may hold several lines, to be added to the log.  Can be called from any thread
+   */
+  void append (String text) {
+    synchronized (pending) {
+      for (String line : text.split("\n")) {
+        if (pending.size() >= CAPACITY) {
+          overflow.add(pending.pollFirst());
+        }
+        pending.add(line);
+      }
+      if (!timer.isRunning()) {
+        timer.start();
+      }
+    }
+  }
+
+  /**
+   *  Adds the queued lines to the list (on the EDT), keeping the last line in view if it was already
+   */
+  private void flush () {
+    List<String> add, dropped;
+    synchronized (pending) {
+      add = new ArrayList<>(pending);
+      pending.clear();
+      dropped = new ArrayList<>(overflow);
+      overflow.clear();
+    }
+    JScrollBar bar = getVerticalScrollBar();
+    boolean atEnd = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+    int newWidth = width;
+    for (String line : add) {
+      newWidth = Math.max(newWidth, metrics.stringWidth(line) + 10);
+    }
+    if (newWidth > width) {
+      width = newWidth;
+      list.setFixedCellWidth(width);
+    }
+    List<String> evicted = new ArrayList<>();
+    model.addAll(add, evicted);
+    if (atEnd && model.getSize() > 0) {
+      list.ensureIndexIsVisible(model.getSize() - 1);
+    }
+    // Lines pushed out of the ring are older than those dropped from the queue, so spill them first
+    evicted.addAll(dropped);
+    spill(evicted);
+  }
+
+  /**
+   *  Removes every line from the view (they're written to the log file)
+   */
+  void clear () {
+    List<String> evicted = new ArrayList<>();
+    model.clear(evicted);
+    spill(evicted);
+  }
+
+  private void spill (List<String> lines) {
+    if (!lines.isEmpty()) {
+      spiller.submit(() -> {
+        try {
+          for (String line : lines) {
+            if (spill == null || spillSize >= SPILL_SIZE) {
+              roll();
+            }
+            spill.write(line);
+            spill.write(System.lineSeparator());
+            spillSize += line.getBytes(StandardCharsets.UTF_8).length + System.lineSeparator().length();
+          }
+          spill.flush();
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      });
+    }
+  }
+
+  /**
+   *  Opens the log file, first renaming it (and any older ones) if it's full: file to file.1, file.1 to
+   *  file.2 and so on, deleting the oldest
+   */
+  private void roll () throws IOException {
+    if (spill != null) {
+      spill.close();
+      spill = null;
+    }
+    if (spillFile.length() >= SPILL_SIZE) {
+      new File(spillFile.getPath() + "." + SPILL_FILES).delete();
+      for (int ii = SPILL_FILES - 1; ii > 0; ii--) {
+        new File(spillFile.getPath() + "." + ii).renameTo(new File(spillFile.getPath() + "." + (ii + 1)));
+      }
+      spillFile.renameTo(new File(spillFile.getPath() + ".1"));
+    }
+    spillSize = spillFile.length();
+    spill = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,254 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ *  Counters and phase timings for every USBTMC transaction, kept per instrument.  USBIO counts packets,
+ *  bytes and timeouts, USBTMC times each phase of a transaction (writing the command, waiting for
+ *  the first part of the response, reading all of it and decoding it) and counts bTag mismatches, resets,
+ *  recoveries and reads retried after a timeout, and USBPool times opening a session.  Queries and
+ *  waveform windows that are sent again after a failure also count as retries.  Each instrument's metrics
+ *  are registered as a JMX MBean (RglComm:type=Instrument,name=...) and can also be served in the
+ *  Prometheus text format at http://127.0.0.1:port/metrics by startServer().  If a tracer is set, one line
+ *  is sent to it for every transaction.
+ */
+
+class Metrics {
+  static final Metrics              shared = new Metrics();
+  static final Device               NONE = new Device("none");    // Not registered, for untracked sessions
+  private final Map<String,Device>  devices = new LinkedHashMap<>();
+  private volatile Consumer<String> tracer;
+  private HttpServer                server;
+
+  /**
+   *  Metrics for one instrument
+   */
+  static class Device implements DynamicMBean {
+    final String            name;
+    final LongAdder         txPackets = new LongAdder(), txBytes = new LongAdder();
+    final LongAdder         rxPackets = new LongAdder(), rxBytes = new LongAdder();
+    final LongAdder         messages = new LongAdder(), tagErrors = new LongAdder(), retries = new LongAdder();
+    final LongAdder         timeouts = new LongAdder(), errors = new LongAdder(), resets = new LongAdder();
+    final LongAdder         recoveries = new LongAdder();
+    final LatencyHistogram  open = new LatencyHistogram(), write = new LatencyHistogram();
+    final LatencyHistogram  firstByte = new LatencyHistogram(), response = new LatencyHistogram();
+    final LatencyHistogram  decode = new LatencyHistogram();
+
+    Device (String name) {
+      this.name = name;
+    }
+
+    private Map<String,LongAdder> counters () {
+      Map<String,LongAdder> map = new LinkedHashMap<>();
+      map.put("tx_packets", txPackets);
+      map.put("tx_bytes", txBytes);
+      map.put("rx_packets", rxPackets);
+      map.put("rx_bytes", rxBytes);
+      map.put("messages", messages);
+      map.put("tag_errors", tagErrors);
+      map.put("retries", retries);
+      map.put("timeouts", timeouts);
+      map.put("errors", errors);
+      map.put("resets", resets);
+      map.put("recoveries", recoveries);
+      return map;
+    }
+
+    private Map<String,LatencyHistogram> phases () {
+      Map<String,LatencyHistogram> map = new LinkedHashMap<>();
+      map.put("open", open);
+      map.put("write", write);
+      map.put("first_byte", firstByte);
+      map.put("response", response);
+      map.put("decode", decode);
+      return map;
+    }
+
+    /**
+     *  @return current value of every counter, and the count, median, 99th percentile and max (in ms) of
+     *  every phase, by attribute name
+     */
+    Map<String,Number> snapshot () {
+      Map<String,Number> map = new LinkedHashMap<>();
+      for (Map.Entry<String,LongAdder> item : counters().entrySet()) {
+        map.put(item.getKey(), item.getValue().sum());
+      }
+      for (Map.Entry<String,LatencyHistogram> item : phases().entrySet()) {
+        LatencyHistogram hist = item.getValue();
+        map.put(item.getKey() + "_count", hist.getCount());
+        map.put(item.getKey() + "_p50_ms", hist.getPercentile(50) / 1e3);
+        map.put(item.getKey() + "_p99_ms", hist.getPercentile(99) / 1e3);
+        map.put(item.getKey() + "_max_ms", hist.getMax() / 1e3);
+      }
+      return map;
+    }
+
+    /*
+     *  DynamicMBean, exposing snapshot() as read-only attributes
+     */
+
+    public Object getAttribute (String attribute) throws AttributeNotFoundException {
+      Number value = snapshot().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    public AttributeList getAttributes (String[] attributes) {
+      Map<String,Number> values = snapshot();
+      AttributeList list = new AttributeList();
+      for (String name : attributes) {
+        if (values.containsKey(name)) {
+          list.add(new Attribute(name, values.get(name)));
+        }
+      }
+      return list;
+    }
+
+    public void setAttribute (Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Read only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes (AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    public Object invoke (String action, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo () {
+      Map<String,Number> values = snapshot();
+      MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+      int idx = 0;
+      for (Map.Entry<String,Number> item : values.entrySet()) {
+        attrs[idx++] = new MBeanAttributeInfo(item.getKey(), item.getValue().getClass().getName(), item.getKey(),
+                                              true, false, false);
+      }
+      return new MBeanInfo(getClass().getName(), "USBTMC metrics for " + name, attrs, null, null, null);
+    }
+  }
+
+  /**
+   *  @return metrics for the named instrument, creating (and registering with JMX) them on first use
+   */
+  synchronized Device device (String name) {
+    Device dev = devices.get(name);
+    if (dev == null) {
+      devices.put(name, dev = new Device(name));
+      try {
+        ObjectName objName = new ObjectName("RglComm:type=Instrument,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(dev, objName);
+      } catch (JMException ex) {
+        ex.printStackTrace();
+      }
+    }
+    return dev;
+  }
+
+  /**
+   *  @param tracer receives a line for every transaction, or null to stop tracing
+   */
+  void setTracer (Consumer<String> tracer) {
+    this.tracer = tracer;
+  }
+
+  boolean isTracing () {
+    return tracer != null;
+  }
+
+  void trace (String line) {
+    Consumer<String> out = tracer;
+    if (out != null) {
+      out.accept(line);
+    }
+  }
+
+  /**
+   *  @return every instrument's metrics in the Prometheus text exposition format
+   */
+  synchronized String toPrometheus () {
+    StringBuilder buf = new StringBuilder();
+    if (devices.isEmpty()) {
+      return "";
+    }
+    Device first = devices.values().iterator().next();
+    for (String counter : first.counters().keySet()) {
+      String metric = "rglcomm_" + counter + "_total";
+      buf.append("# TYPE ").append(metric).append(" counter\n");
+      for (Device dev : devices.values()) {
+        buf.append(metric).append("{instrument=\"").append(dev.name).append("\"} ").append(dev.counters().get(counter).sum());
+        buf.append('\n');
+      }
+    }
+    buf.append("# TYPE rglcomm_phase_seconds summary\n");
+    for (Device dev : devices.values()) {
+      for (Map.Entry<String,LatencyHistogram> item : dev.phases().entrySet()) {
+        LatencyHistogram hist = item.getValue();
+        String labels = "instrument=\"" + dev.name + "\",phase=\"" + item.getKey() + "\"";
+        for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+          // Prometheus needs '.' decimals and '\n' line ends whatever the platform and locale
+          buf.append(String.format(Locale.ROOT, "rglcomm_phase_seconds{%s,quantile=\"%s\"} %.6f\n", labels, quantile,
+                                   hist.getPercentile(quantile * 100) / 1e6));
+        }
+        buf.append(String.format(Locale.ROOT, "rglcomm_phase_seconds_sum{%s} %.6f\n", labels,
+                                 hist.getMean() * hist.getCount() / 1e6));
+        buf.append(String.format(Locale.ROOT, "rglcomm_phase_seconds_count{%s} %d\n", labels, hist.getCount()));
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   *  Starts serving toPrometheus() at http://127.0.0.1:port/metrics (does nothing if already started)
+   */
+  synchronized void startServer (int port) throws IOException {
+    if (server != null) {
+      return;
+    }
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    server.createContext("/metrics", exchange -> {
+      byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.setExecutor(null);
+    server.start();
+  }
+
+  synchronized void stopServer () {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+  }
+
+  /**
+   *  @return one line per instrument summarizing its counters and response times
+   */
+  synchronized String getSummary () {
+    StringBuilder buf = new StringBuilder();
+    for (Device dev : devices.values()) {
+      buf.append(String.format("  %s: %d msgs, out %d pkts/%d B, in %d pkts/%d B, %d retries, %d timeouts, %d tag errors, " +
+                               "%d resets, %d recoveries%n    first byte %s%n    response   %s%n", dev.name,
+                               dev.messages.sum(), dev.txPackets.sum(), dev.txBytes.sum(), dev.rxPackets.sum(),
+                               dev.rxBytes.sum(), dev.retries.sum(), dev.timeouts.sum(), dev.tagErrors.sum(),
+                               dev.resets.sum(), dev.recoveries.sum(), dev.firstByte, dev.response));
+    }
+    return buf.toString();
+  }
+}
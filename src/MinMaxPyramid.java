@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+
+/**
+ *  Multi-resolution min/max summary of a record of unsigned byte samples.  Level 0 holds the min and max
+ *  of each run of FACTOR samples, and each higher level holds the min and max of FACTOR bins of the level
+ *  below it, so the pyramid takes about 2/3 of the size of the record.  The min and max of any range of
+ *  samples can then be found by combining at most a few bins at each level, so drawing an envelope of any
+ *  part of the record costs O(pixels * levels) rather than O(samples).
+ */
+
+class MinMaxPyramid {
+  private static final int  FACTOR = 4;
+  private final ByteBuffer  data;
+  private final int         length;
+  private final byte[][]    mins, maxs;
+  private final long[]      binSize;
+  private int               lo, hi;           // Result of the last range() call
+
+  MinMaxPyramid (ByteBuffer data) {
+    this.data = data;
+    length = data.limit();
+    int levels = 0;
+    for (long size = FACTOR; size < length; size *= FACTOR) {
+      levels++;
+    }
+    mins = new byte[levels][];
+    maxs = new byte[levels][];
+    binSize = new long[levels];
+    long size = FACTOR;
+    for (int lv = 0; lv < levels; lv++, size *= FACTOR) {
+      binSize[lv] = size;
+      int bins = (int) ((length + size - 1) / size);
+      byte[] mn = mins[lv] = new byte[bins];
+      byte[] mx = maxs[lv] = new byte[bins];
+      for (int bin = 0; bin < bins; bin++) {
+        int min = 255, max = 0;
+        if (lv == 0) {
+          int end = (int) Math.min(length, (bin + 1) * size);
+          for (int ii = (int) (bin * size); ii < end; ii++) {
+            int val = data.get(ii) & 0xFF;
+            min = Math.min(min, val);
+            max = Math.max(max, val);
+          }
+        } else {
+          byte[] pmn = mins[lv - 1];
+          byte[] pmx = maxs[lv - 1];
+          int end = Math.min(pmn.length, (bin + 1) * FACTOR);
+          for (int ii = bin * FACTOR; ii < end; ii++) {
+            min = Math.min(min, pmn[ii] & 0xFF);
+            max = Math.max(max, pmx[ii] & 0xFF);
+          }
+        }
+        mn[bin] = (byte) min;
+        mx[bin] = (byte) max;
+      }
+    }
+  }
+
+  int getLength () {
+    return length;
+  }
+
+  int get (int idx) {
+    return data.get(idx) & 0xFF;
+  }
+
+  /**
+   *  Finds the min and max of samples from (inclusive) to to (exclusive), which are then available from
+   *  getMin() and getMax()
+   */
+  void range (long from, long to) {
+    lo = 255;
+    hi = 0;
+    scan(Math.max(0, from), Math.min(length, to), mins.length - 1);
+  }
+
+  int getMin () {
+    return lo;
+  }
+
+  int getMax () {
+    return hi;
+  }
+
+  private void scan (long from, long to, int level) {
+    for (int lv = level; lv >= 0; lv--) {
+      long size = binSize[lv];
+      long first = (from + size - 1) / size;
+      long last = to / size;
+      if (first < last) {
+        // Use whole bins at this level and finer levels for the partial bins on either side
+        scan(from, first * size, lv - 1);
+        byte[] mn = mins[lv];
+        byte[] mx = maxs[lv];
+        for (int bin = (int) first; bin < last; bin++) {
+          lo = Math.min(lo, mn[bin] & 0xFF);
+          hi = Math.max(hi, mx[bin] & 0xFF);
+        }
+        scan(last * size, to, lv - 1);
+        return;
+      }
+    }
+    for (long ii = from; ii < to; ii++) {
+      int val = data.get((int) ii) & 0xFF;
+      lo = Math.min(lo, val);
+      hi = Math.max(hi, val);
+    }
+  }
+}
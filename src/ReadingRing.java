@@ -0,0 +1,91 @@
+/**
+ *  Fixed capacity ring buffer of double readings that keeps the most recent readings along with running
+ *  statistics (count, min, max, mean and standard deviation) of every reading added.  The mean and variance
+ *  are updated incrementally using Welford's method, so adding a reading is O(1) and allocation free.
+ */
+
+class ReadingRing {
+  private final double[]  values;
+  private final long[]    times;
+  private int             head, size;
+  private long            count;
+  private double          min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, mean, m2;
+
+  ReadingRing (int capacity) {
+    values = new double[capacity];
+    times = new long[capacity];
+  }
+
+  /**
+   *  @param time time of reading (such as System.nanoTime())
+   */
+  synchronized void add (double value, long time) {
+    values[head] = value;
+    times[head] = time;
+    head = (head + 1) % values.length;
+    size = Math.min(size + 1, values.length);
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    double delta = value - mean;
+    mean += delta / count;
+    m2 += delta * (value - mean);
+  }
+
+  synchronized void clear () {
+    head = size = 0;
+    count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+    mean = m2 = 0;
+  }
+
+  /**
+   *  @return number of readings held (at most the capacity)
+   */
+  synchronized int size () {
+    return size;
+  }
+
+  /**
+   *  @param idx 0 for the oldest reading held, size() - 1 for the newest
+   */
+  synchronized double get (int idx) {
+    return values[(head - size + idx + values.length) % values.length];
+  }
+
+  synchronized long getTime (int idx) {
+    return times[(head - size + idx + values.length) % values.length];
+  }
+
+  /**
+   *  Copies the readings held, oldest first, into dst, which must have room for size() values
+   *  @return number of values copied
+   */
+  synchronized int copyTo (double[] dst) {
+    for (int ii = 0; ii < size; ii++) {
+      dst[ii] = values[(head - size + ii + values.length) % values.length];
+    }
+    return size;
+  }
+
+  synchronized long getCount () {
+    return count;
+  }
+
+  synchronized double getMin () {
+    return min;
+  }
+
+  synchronized double getMax () {
+    return max;
+  }
+
+  synchronized double getMean () {
+    return mean;
+  }
+
+  synchronized double getStdDev () {
+    return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+  }
+}
@@ -0,0 +1,272 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *  Classifies a response, read straight from the receive buffer, as a number in one of the IEEE 488.2
+ *  formats (NR1 integer such as "42", NR2 fixed point such as "1.25", or NR3 with an exponent such as
+ *  "-1.234567E-02"), a comma separated list of numbers (such as :MEASure:ALL? on a DP832), a definite
+ *  length block or, if it's none of those, a string.  Numbers are parsed into primitives directly from the
+ *  bytes, without creating Strings or throwing exceptions, and a Response can be reused for every reading,
+ *  so parsing a stream of readings creates no garbage.
+ */
+
+class Response {
+  static final int              EMPTY = 0, NR1 = 1, NR2 = 2, NR3 = 3, LIST = 4, STRING = 5, BLOCK = 6;
+  private static final double[] POW10 = new double[23];     // Powers of ten that a double holds exactly
+  private static final DecimalFormat FORMAT = new DecimalFormat("#.#########");
+  private ByteBuffer            data;
+  private int                   from, to, type, count;
+  private double[]              values = new double[8];
+  private double                number;                     // Set by parseNumber()
+  private int                   format;
+
+  static {
+    POW10[0] = 1;
+    for (int ii = 1; ii < POW10.length; ii++) {
+      POW10[ii] = POW10[ii - 1] * 10;
+    }
+  }
+
+  private static boolean isSpace (byte cc) {
+    return cc == ' ' || cc == '\t' || cc == '\r' || cc == '\n';
+  }
+
+  /**
+   *  Classifies the response from rsp's position to its limit (neither of which is changed), parsing any
+   *  numbers it holds.  rsp must not be changed while this Response is being used
+   *  @return type of response
+   */
+  int parse (ByteBuffer rsp) {
+    data = rsp;
+    count = 0;
+    int idx = rsp.position();
+    int end = rsp.limit();
+    while (end > idx && isSpace(rsp.get(end - 1))) {
+      end--;
+    }
+    while (idx < end && isSpace(rsp.get(idx))) {
+      idx++;
+    }
+    from = idx;
+    to = end;
+    if (idx == end) {
+      return type = EMPTY;
+    }
+    if (rsp.get(idx) == '#' && idx + 1 < end && rsp.get(idx + 1) >= '0' && rsp.get(idx + 1) <= '9') {
+      return type = BLOCK;
+    }
+    int kind = NR1;
+    while (true) {
+      idx = parseNumber(rsp, idx, end);
+      if (idx < 0) {
+        count = 0;
+        return type = STRING;
+      }
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = number;
+      kind = Math.max(kind, format);
+      while (idx < end && isSpace(rsp.get(idx))) {
+        idx++;
+      }
+      if (idx == end) {
+        return type = count > 1 ? LIST : kind;
+      }
+      if (rsp.get(idx++) != ',') {
+        count = 0;
+        return type = STRING;
+      }
+      while (idx < end && isSpace(rsp.get(idx))) {
+        idx++;
+      }
+    }
+  }
+
+  /**
+   *  Splits a response message that holds the replies to several queries (sent together in one program
+   *  message) into the reply to each, at every ';' that is not inside a quoted string or a definite length
+   *  block
+   *  @return read-only views of each reply, in order, which share rsp's content
+   */
+  static List<ByteBuffer> split (ByteBuffer rsp) {
+    List<ByteBuffer> units = new ArrayList<>();
+    int start = rsp.position();
+    int end = rsp.limit();
+    while (end > start && isSpace(rsp.get(end - 1))) {
+      end--;
+    }
+    byte quote = 0;
+    int idx = start;
+    while (idx < end) {
+      byte cc = rsp.get(idx);
+      if (quote != 0) {
+        quote = cc == quote ? 0 : quote;
+        idx++;
+      } else if (cc == '"' || cc == '\'') {
+        quote = cc;
+        idx++;
+      } else if (cc == '#' && idx + 1 < end && rsp.get(idx + 1) >= '0' && rsp.get(idx + 1) <= '9') {
+        // Skip over the block's body, which may hold any byte, using the length in its header
+        int digits = rsp.get(idx + 1) - '0';
+        long length = digits == 0 ? end : 0;
+        for (int ii = 0; ii < digits && idx + 2 + ii < end; ii++) {
+          length = length * 10 + (rsp.get(idx + 2 + ii) - '0');
+        }
+        idx = (int) Math.min(end, idx + 2 + digits + length);
+      } else if (cc == ';') {
+        units.add(slice(rsp, start, idx));
+        start = ++idx;
+      } else {
+        idx++;
+      }
+    }
+    units.add(slice(rsp, start, end));
+    return units;
+  }
+
+  private static ByteBuffer slice (ByteBuffer src, int from, int to) {
+    ByteBuffer unit = src.asReadOnlyBuffer();
+    unit.limit(to).position(from);
+    return unit.slice();
+  }
+
+  /**
+   *  Parses a number starting at idx.  When it has no more than 15 significant digits and a small exponent
+   *  (which covers every reading a Rigol instrument returns) the digits are accumulated as a long and
+   *  scaled by one exactly held power of ten, which gives the same correctly rounded result as
+   *  Double.parseDouble().  Anything else is passed to Double.parseDouble()
+   *  @return index after the number, or -1 if there is no valid number at idx.  The value is left in
+   *  number and its format (NR1, NR2 or NR3) in format
+   */
+  int parseNumber (ByteBuffer src, int idx, int end) {
+    int start = idx;
+    boolean neg = false;
+    byte cc;
+    if (idx < end && ((cc = src.get(idx)) == '-' || cc == '+')) {
+      neg = cc == '-';
+      idx++;
+    }
+    long mant = 0;
+    int digits = 0, sig = 0, scale = 0;
+    boolean point = false;
+    for (; idx < end; idx++) {
+      cc = src.get(idx);
+      if (cc >= '0' && cc <= '9') {
+        digits++;
+        if (sig < 18) {
+          mant = mant * 10 + (cc - '0');
+          scale -= point ? 1 : 0;
+        }
+        sig += mant > 0 ? 1 : 0;
+      } else if (cc == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+    }
+    if (digits == 0) {
+      return -1;
+    }
+    format = point ? NR2 : NR1;
+    if (idx < end && ((cc = src.get(idx)) == 'e' || cc == 'E')) {
+      int ii = idx + 1;
+      boolean negExp = false;
+      if (ii < end && ((cc = src.get(ii)) == '-' || cc == '+')) {
+        negExp = cc == '-';
+        ii++;
+      }
+      int exp = 0, expDigits = 0;
+      for (; ii < end && (cc = src.get(ii)) >= '0' && cc <= '9'; ii++, expDigits++) {
+        exp = Math.min(exp * 10 + (cc - '0'), 100000);
+      }
+      if (expDigits == 0) {
+        return -1;
+      }
+      scale += negExp ? -exp : exp;
+      format = NR3;
+      idx = ii;
+    }
+    if (sig <= 15 && scale >= -22 && scale <= 22) {
+      double value = scale >= 0 ? mant * POW10[scale] : mant / POW10[-scale];
+      number = neg ? -value : value;
+    } else {
+      number = Double.parseDouble(ascii(src, start, idx));
+    }
+    return idx;
+  }
+
+  private static String ascii (ByteBuffer src, int from, int to) {
+    byte[] bytes = new byte[to - from];
+    for (int ii = 0; ii < bytes.length; ii++) {
+      bytes[ii] = src.get(from + ii);
+    }
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   *  @return value left by parseNumber()
+   */
+  double getNumber () {
+    return number;
+  }
+
+  int getType () {
+    return type;
+  }
+
+  boolean isNumber () {
+    return type == NR1 || type == NR2 || type == NR3;
+  }
+
+  /**
+   *  @return number of values parsed (1 for a number, more for a LIST, otherwise 0)
+   */
+  int getCount () {
+    return count;
+  }
+
+  double get (int idx) {
+    if (idx >= count) {
+      throw new IndexOutOfBoundsException("Value " + idx + " of " + count);
+    }
+    return values[idx];
+  }
+
+  /**
+   *  @return the response, without leading or trailing whitespace, as text
+   */
+  String getText () {
+    return ascii(data, from, to);
+  }
+
+  /**
+   *  Formats value with up to 9 decimal places and no exponent
+   */
+  static String format (double value) {
+    synchronized (FORMAT) {
+      return FORMAT.format(value);
+    }
+  }
+
+  /**
+   *  @return the response as text followed, for numbers and lists, by the values parsed from it, such as
+   *  "1.23400000E-01  (0.1234)"
+   */
+  @Override
+  public String toString () {
+    StringBuilder buf = new StringBuilder(getText());
+    if (count > 0) {
+      buf.append("  (");
+      for (int ii = 0; ii < count; ii++) {
+        buf.append(ii > 0 ? ", " : "").append(format(values[ii]));
+      }
+      buf.append(')');
+    }
+    return buf.toString();
+  }
+}
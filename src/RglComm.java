@@ -1,10 +1,15 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.ByteArrayOutputStream;
-import java.text.DecimalFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.prefs.Preferences;
 
 /*
@@ -16,22 +21,73 @@ import java.util.prefs.Preferences;
 
 public class RglComm extends JFrame {
   private transient Preferences prefs = Preferences.userRoot().node(this.getClass().getName());
-  private transient boolean     running;
-  private static List<Rigol>    devices = new LinkedList<>();
-  private JTextArea             text = new JTextArea();
+  private transient volatile boolean asyncIn = true;
+  private transient volatile boolean batching = true;
+  static List<Rigol>            devices = new LinkedList<>();
+  private LogView               log;
   private JTextField            command;
   private JComboBox<Rigol>      select;
-  private USBIO                 usb;
-  private byte                  bTag;
+  private List<Rigol>           choices;
+  private USBPool               pool = new USBPool();
+  private DeviceScheduler       scheduler = new DeviceScheduler();
+  private Set<DmmLogger>        loggers = ConcurrentHashMap.newKeySet();
+  private TrendStore            trends;
+  private Map<String,WaveAcquirer> unfinished = new ConcurrentHashMap<>();    // Failed ACQ captures, to resume
 
   static class Rigol {
     String  name;
     short   vend, prod;
+    boolean largeXfer;
+    final String serial;                                      // null to use the first device found
+    long[]  rxBytes = new long[2], rxNanos = new long[2];   // Index 0 = synchronous reads, 1 = asynchronous
+    final TimeoutPolicy timeouts = new TimeoutPolicy();
+    private Metrics.Device metrics;
 
     Rigol (String name, int vend, int prod) {
+      this(name, vend, prod, true);
+    }
+
+    /**
+     *  @param largeXfer false for devices known to break when asked for a TransferSize larger than
+     *  the original single block (these always use the compatible, one block per request path)
+     */
+    Rigol (String name, int vend, int prod, boolean largeXfer) {
       this.name = name;
       this.vend = (short) vend;
       this.prod = (short) prod;
+      this.largeXfer = largeXfer;
+      this.serial = null;
+    }
+
+    /**
+     *  Selects one attached instance of type by its serial number, for when there's more than one
+     */
+    Rigol (Rigol type, String serial) {
+      this.name = type.name + " #" + serial;
+      this.vend = type.vend;
+      this.prod = type.prod;
+      this.largeXfer = type.largeXfer;
+      this.serial = serial;
+    }
+
+    void addTransfer (boolean async, int bytes, long nanos) {
+      rxBytes[async ? 1 : 0] += bytes;
+      rxNanos[async ? 1 : 0] += nanos;
+    }
+
+    /**
+     *  @return device's counters and phase timings (registered with JMX the first time they're used)
+     */
+    synchronized Metrics.Device getMetrics () {
+      if (metrics == null) {
+        metrics = Metrics.shared.device(name);
+      }
+      return metrics;
+    }
+
+    double getMBPerSec (boolean async) {
+      int idx = async ? 1 : 0;
+      return rxNanos[idx] > 0 ? (rxBytes[idx] / 1e6) / (rxNanos[idx] / 1e9) : 0;
     }
 
     public String toString () {
@@ -44,12 +100,32 @@ public class RglComm extends JFrame {
     devices.add(new Rigol("DM3058 Digital Multimeter",    0x1AB1, 0x09C4));
     devices.add(new Rigol("DP832 Prog DC Power Supply",   0x1AB1, 0x0E11));
     devices.add(new Rigol("DS4024 Digital Oscilloscope",  0x1AB1, 0x04B1));
-    devices.add(new Rigol("DS1102E Digital Oscilloscope", 0x1AB1, 0x0588));
+    devices.add(new Rigol("DS1102E Digital Oscilloscope", 0x1AB1, 0x0588, false));
     devices.add(new Rigol("DSA815 Spectrum Analyzer",     0x1AB1, 0x0960));
     devices.add(new Rigol("DG4162 Func/Wave Generator",   0x1AB1, 0x0641)); // Shows as PID 0x0588 in "Printer" mode
     devices.add(new Rigol("DS1054Z Digital Oscilloscope", 0x1AB1, 0x04CE)); // Not verified
   }
 
+  /**
+   *  @return the known device types followed by an entry for the serial number of each attached instance
+   */
+  private static List<Rigol> getChoices () {
+    List<Rigol> list = new ArrayList<>(devices);
+    try {
+      DeviceRegistry registry = DeviceRegistry.shared();
+      for (Rigol type : devices) {
+        for (DeviceRegistry.Info info : registry.find(type.vend, type.prod, null)) {
+          if (DeviceRegistry.readStrings(info, null) && !info.serial.isEmpty()) {
+            list.add(new Rigol(type, info.serial));
+          }
+        }
+      }
+    } catch (Exception ex) {
+      // No libusb, so only the device types can be selected
+    }
+    return list;
+  }
+
   class PopMenuTextField extends JTextField {
     private Map<String,String> shortcuts = new LinkedHashMap<>();
     {
@@ -58,10 +134,14 @@ public class RglComm extends JFrame {
       shortcuts.put("DS1102E/Wave Capture Ch1", ":WAV:POIN:MODE NOR;:WAVeform:DATA? CH1");
       shortcuts.put("DS1102E/Wave Capture Ch2", ":WAV:POIN:MODE NOR;:WAVeform:DATA? CH2");
       shortcuts.put("DS4024/Screen Capture", ":DISP:DATA?");
+      shortcuts.put("DS4024/Deep Memory Capture Ch1", "ACQ CHAN1");
+      shortcuts.put("DS4024/Screen Mirror", "mirror :DISP:DATA?");
       shortcuts.put("DG4162/Screen Capture", ":HCOP:SDUM:DATA?");
+      shortcuts.put("DG4162/Screen Mirror", "mirror :HCOP:SDUM:DATA?");
       shortcuts.put("DM3058/Measure DC Voltage", ":FUNC:VOLT:DC;DLY1;:MEAS:VOLT:DC?");
       shortcuts.put("DM3058/Measure AC Voltage", ":FUNC:VOLT:AC;DLY1;:MEAS:VOLT:AC?");
       shortcuts.put("DM3058/Measure Resistance", ":FUNC:RES;DLY1;:MEAS:RES?");
+      shortcuts.put("DM3058/Log DC Voltage (type stop to end)", "LOG 0");
     }
 
     PopMenuTextField (JComboBox<Rigol> select) {
@@ -114,23 +194,209 @@ public class RglComm extends JFrame {
     new RglComm();
   }
 
-  private void doCommand () {
-    String cmd = command.getText();
+  /**
+   *  Handles commands that don't talk to a device
+   *  @return true if cmd was handled
+   */
+  private boolean doLocalCommand (String cmd) {
     if ("scan".equalsIgnoreCase(cmd)) {
-      appendLine(RglScan.doScan());
+      scheduler.submit("scan", () -> {
+        appendLine(RglScan.doScan());
+        appendLine(DeviceRegistry.shared().getStats());
+      });
+    } else if (cmd.toLowerCase().startsWith("async ")) {
+      // Switch between asynchronous and synchronous bulk-IN reads to compare their throughput
+      asyncIn = "on".equalsIgnoreCase(cmd.substring(6).trim());
+      appendLine("Async bulk-IN: " + (asyncIn ? "on" : "off"));
+    } else if (cmd.toLowerCase().startsWith("batch ")) {
+      // Switch between sending a line's commands as one message and sending them one at a time
+      batching = "on".equalsIgnoreCase(cmd.substring(6).trim());
+      appendLine("Batching: " + (batching ? "on" : "off"));
+    } else if (cmd.toLowerCase().startsWith("sync ")) {
+      syncCapture(cmd.substring(5).trim());
+    } else if (cmd.toLowerCase().startsWith("trend")) {
+      showTrend(cmd.substring(5).trim());
+    } else if ("clear".equalsIgnoreCase(cmd)) {
+      log.clear();
+    } else if ("stop".equalsIgnoreCase(cmd)) {
+      for (DmmLogger logger : loggers) {
+        logger.stop();
+      }
+    } else if ("pool".equalsIgnoreCase(cmd)) {
+      appendLine(pool.getStats());
+      appendLine("Async bulk-IN: " + (asyncIn ? "on" : "off") + ", batching: " + (batching ? "on" : "off"));
+      for (Rigol dev : choices) {
+        if (dev.rxBytes[0] + dev.rxBytes[1] > 0) {
+          appendLine(String.format("  %s: sync %.2f MB/s, async %.2f MB/s (%s transfers)", dev.name,
+                                   dev.getMBPerSec(false), dev.getMBPerSec(true), dev.largeXfer ? "large" : "compatible"));
+        }
+        String latency = dev.timeouts.getReport();
+        if (!latency.isEmpty()) {
+          appendLine("  " + dev.name + " response times:\n" + latency);
+        }
+      }
+    } else if (cmd.toLowerCase().startsWith("metrics")) {
+      // Serve every device's counters and timings to Prometheus, such as "metrics 9464"
+      String port = cmd.substring(7).trim();
+      if (!port.isEmpty()) {
+        try {
+          Metrics.shared.startServer(Integer.parseInt(port));
+          appendLine("Serving metrics at http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException | NumberFormatException ex) {
+          appendLine("Unable to serve metrics on port " + port + ": " + ex);
+        }
+      }
+      appendLine(Metrics.shared.getSummary());
+    } else if (cmd.toLowerCase().startsWith("trace ")) {
+      // Show one line per transaction with its size and timings
+      boolean on = "on".equalsIgnoreCase(cmd.substring(6).trim());
+      Metrics.shared.setTracer(on ? this::appendLine : null);
+      appendLine("Trace: " + (on ? "on" : "off"));
     } else {
-      running = true;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   *  @return store that LOG readings are kept in, opening it on first use
+   */
+  private synchronized TrendStore getTrends () throws IOException {
+    if (trends == null) {
+      trends = new TrendStore(new File(System.getProperty("user.home"), "RglComm-trends"));
+      TrendStore store = trends;
+      Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+    }
+    return trends;
+  }
+
+  /**
+   *  Handles the "trend [series] [hours]" command, which lists the stored series or shows the min, max and
+   *  mean of series over the last hours (default 24), in at most 24 steps.  Runs on its own worker, as
+   *  opening the store and reading a long series can take a while
+   */
+  private void showTrend (String args) {
+    String[] words = args.split("\\s+");
+    scheduler.submit("trend", () -> {
       try {
-        Rigol sel = (Rigol) select.getSelectedItem();
-        if (sel == null) {
+        TrendStore store = getTrends();
+        if (words[0].isEmpty()) {
+          appendLine("Trends: " + String.join(", ", store.getNames()));
           return;
         }
-        usb = new USBIO(sel.vend, sel.prod);
-        command.setText("");
+        TrendStore.Series series = store.series(words[0]);
+        double hours = words.length > 1 ? Double.parseDouble(words[1]) : 24;
+        long to = System.currentTimeMillis() + 1;
+        long start = System.nanoTime();
+        TrendStore.Trend trend = series.query(to - (long) (hours * 3600000), to, 24);
+        double millis = (System.nanoTime() - start) / 1e6;
+        appendLine(String.format("Trend: %s, %d readings in %.1f KB, %d steps of %d s (%s) in %.2f ms",
+                                 series.name, series.getCount(), series.getSize() / 1024.0, trend.size,
+                                 trend.width / 1000, trend.source, millis));
+        SimpleDateFormat time = new SimpleDateFormat("MM-dd HH:mm:ss");
+        for (int ii = 0; ii < trend.size; ii++) {
+          appendLine(String.format("  %s  n=%d  min=%s  max=%s  mean=%s", time.format(new Date(trend.times[ii])),
+                                   trend.counts[ii], Response.format(trend.min[ii]), Response.format(trend.max[ii]),
+                                   Response.format(trend.mean[ii])));
+        }
+      } catch (IOException | NumberFormatException ex) {
+        appendLine("Err: " + ex);
+      }
+    });
+  }
+
+  /**
+   *  Handles the "sync [count] device query | device query ..." command, which reads several devices at
+   *  the same moment, count times (default 10), such as "sync 100 DP832 :MEAS:ALL? | DM3058 :MEAS:VOLT:DC?"
+   *  Each device is given by the start of its name, followed by "#serial" to pick one of several attached,
+   *  and its query may be preceded by commands that arm or trigger it, such as "DS4024 :TFOR;:MEAS:VPP? CHAN1"
+   */
+  private void syncCapture (String args) {
+    String[] words = args.split("\\s+", 2);
+    int count = 10;
+    if (words[0].matches("\\d+")) {
+      count = Integer.parseInt(words[0]);
+      args = words.length > 1 ? words[1] : "";
+    }
+    Map<String,Rigol> byName = new HashMap<>();
+    SyncCapture capture = new SyncCapture(scheduler, new SyncCapture.Sessions() {
+      public USBTMC acquire (String name) {
+        Rigol dev = byName.get(name);
+        return pool.acquire(dev, dev.serial);
+      }
+
+      public void release (String name, USBTMC tmc, boolean failed) {
+        if (failed && !tmc.recover()) {
+          tmc.resetDevice();
+          pool.invalidate(tmc);
+        } else {
+          pool.release(tmc);
+        }
+      }
+    });
+    for (String entry : args.split("\\|")) {
+      String[] parts = entry.trim().split("\\s+", 2);
+      String[] id = parts[0].split("#", 2);
+      Rigol dev = null;
+      for (Rigol item : choices) {
+        if (item.name.toUpperCase().startsWith(id[0].toUpperCase()) &&
+            (id.length < 2 ? item.serial == null : id[1].equals(item.serial))) {
+          dev = item;
+          break;
+        }
+      }
+      if (dev == null || parts.length < 2 || byName.containsKey(dev.name)) {
+        appendLine("Usage: sync [count] device query | device query ...  (each device once)");
+        return;
+      }
+      byName.put(dev.name, dev);
+      capture.add(dev.name, parts[1]);
+    }
+    appendLine("Snd: sync " + count + " " + args);
+    int rounds = count;
+    scheduler.submit("sync", () -> {
+      try {
+        capture.run(rounds, round -> appendLine("Syn: " + round));
+      } catch (Exception ex) {
+        appendLine("Err: " + ex);
+      }
+      appendLine(capture.getSummary());
+    });
+  }
+
+  /**
+   *  A command line entered for a device, which runs on that device's worker (see DeviceScheduler)
+   */
+  private class Command implements Runnable {
+    private final Rigol   sel;
+    private final String  text;
+    private USBTMC        tmc;
+
+    Command (Rigol sel, String text) {
+      this.sel = sel;
+      this.text = text;
+    }
+
+    public void run () {
+      String cmd = text;
+      try {
+        tmc = pool.acquire(sel, sel.serial);
+        tmc.asyncIn = asyncIn;
         String[] parts = cmd.split(";");
         for (int ii = 0; ii < parts.length; ii++) {
           boolean doPrint = ii == parts.length - 1;
           cmd = parts[ii];
+          if (batching && isBatchable(cmd)) {
+            int last = ii;
+            while (last + 1 < parts.length && isBatchable(parts[last + 1])) {
+              last++;
+            }
+            if (last > ii) {
+              sendBatch(Arrays.asList(parts).subList(ii, last + 1));
+              ii = last;
+              continue;
+            }
+          }
           if (cmd.length() >= 3 && cmd.startsWith("DLY")) {
             int seconds = cmd.length() > 3 ? Integer.parseInt(cmd.substring(3)) : 1;
             try {
@@ -140,42 +406,57 @@ public class RglComm extends JFrame {
             }
             continue;
           }
+          if (cmd.trim().toUpperCase().startsWith("WAITOPC")) {
+            // Waits for the operations started by the commands before it, rather than for a fixed DLY
+            String millis = cmd.trim().substring(7).trim();
+            long start = System.nanoTime();
+            tmc.waitComplete(millis.isEmpty() ? 10000 : Integer.parseInt(millis));
+            appendLine(String.format("Operation complete after %.1f ms", (System.nanoTime() - start) / 1e6));
+            continue;
+          }
+          if (isLocal(cmd, "ACQ")) {
+            acquireWave(cmd);
+            continue;
+          }
+          if (isLocal(cmd, "LOG")) {
+            logReadings(cmd);
+            continue;
+          }
           if (doPrint) {
             appendLine("Snd: " + cmd);
           }
-          byte[] rsp = sendCmd(cmd + '\n');
+          long start = System.nanoTime();
+          ResponseSink sink = new ResponseSink();
+          BlockDecoder rsp = sendQuery(cmd + '\n', sink);
           if (rsp != null) {
-            int pLen = prefixLength(rsp);
-            if (pLen > 0) {
-              String prefix = new String(Arrays.copyOf(rsp, pLen));
-              byte[] body = Arrays.copyOfRange(rsp, pLen, rsp.length);
-              if (body[0] == 'B' && body[1] == 'M') {
+            long nanos = System.nanoTime() - start;
+            if (rsp.isBlock()) {
+              sel.addTransfer(tmc.asyncIn && tmc.largeXfer, (int) rsp.getLength(), nanos);
+              String prefix = rsp.getPrefix() + String.format(" (%.2f MB/s)", rsp.getLength() / 1e6 / (nanos / 1e9));
+              ByteBuffer body = sink.body;
+              if (body == null) {
+                appendLine("Rsp: Block received: " + prefix + " too large to display, saved to " + sink.file);
+              } else if (body.remaining() >= 2 && body.get(0) == 'B' && body.get(1) == 'M') {
                 // :DISPlay:DATA?
                 appendLine("Rsp: BMP image received: " + prefix);
                 new ImageViewer(prefs, body);
-              } else if (body[0] == (byte) 0xFF && body[1] == (byte) 0xD8) {
+              } else if (body.remaining() >= 2 && body.get(0) == (byte) 0xFF && body.get(1) == (byte) 0xD8) {
                 // :HCOPy:SDUMp:DATA?
                 appendLine("Rsp: JPG image received: " + prefix);
                 new ImageViewer(prefs, body);
               } else {
-                if (body.length == 600) {
+                if (body.remaining() == 600) {
                   appendLine("Rsp: Waveform received: " + prefix);
-                  new WaveViewer(prefs, body);
+                  WaveViewer viewer = new WaveViewer(prefs, body.array());
+                  viewer.device = sel.name;
                 } else {
                   appendLine("Rsp: Waveform received: " + prefix + " but too large to display");
                 }
               }
             } else {
               if (doPrint) {
-                if (rsp.length > 0) {
-                  String value = new String(rsp).trim();
-                  try {
-                    double dVal = Double.parseDouble(value);
-                    DecimalFormat fmt = new DecimalFormat("#.#########");
-                    value += "  (" + fmt.format(dVal) + ")";
-                  } catch (NumberFormatException ex) {
-                    // Ignore
-                  }
+                Response value = new Response();
+                if (value.parse(rsp.getTextBuffer()) != Response.EMPTY) {
                   appendLine("Rsp: " + value);
                 }
               }
@@ -185,41 +466,182 @@ public class RglComm extends JFrame {
       } catch (Exception ex) {
         appendLine("Err: " + ex.toString());
         ex.printStackTrace();
-        usb.resetDevice();
+        if (tmc != null) {
+          // Try a USBTMC abort and clear first, as a reset costs a reconnect (and can upset the device)
+          if (tmc.recover()) {
+            appendLine("Recovered " + sel.name + " with abort and clear");
+          } else {
+            tmc.resetDevice();
+            pool.invalidate(tmc);
+            tmc = null;
+          }
+        }
       } finally {
-        if (usb != null) {
-          usb.close();
+        if (tmc != null) {
+          pool.release(tmc);
+          tmc = null;
         }
-        running = false;
       }
     }
-  }
 
-  private int prefixLength (byte[] data) {
-    if (data.length >= 2 && data[0] == '#' && data[1] >= '0' && data[1] <= '9') {
-      int len = (char) data[1] - '0';
-      if (data.length >= len + 2) {
-        for (int ii = 2; ii < len; ii++) {
-          if (data[ii] < '0' || data[ii] > '9') {
-            return 0;
-          }
+    /**
+     *  @return true if part is a command, or a query with a short reply, that can be sent in a batch, which
+     *  excludes the local DLY, WAITOPC, ACQ and LOG commands and queries (such as :DISP:DATA?) that return blocks
+     */
+    private boolean isBatchable (String part) {
+      String cmd = part.trim().toUpperCase();
+      return !cmd.isEmpty() && !cmd.startsWith("DLY") && !isLocal(cmd, "ACQ") && !isLocal(cmd, "LOG") &&
+             !cmd.startsWith("WAITOPC") && !cmd.contains("DATA?");
+    }
+
+    /**
+     *  @return true if part is the local command word (such as "ACQ CHAN1"), rather than a device command
+     *  that starts with the same letters (such as "ACQ:MDEP 12000" or "ACQuire:TYPE AVER")
+     */
+    private boolean isLocal (String part, String word) {
+      String cmd = part.trim();
+      return cmd.regionMatches(true, 0, word, 0, word.length()) &&
+             (cmd.length() == word.length() || Character.isWhitespace(cmd.charAt(word.length())));
+    }
+
+    /**
+     *  Sends consecutive parts of the command line as one message and shows the reply to each query, which
+     *  all arrive in one response message
+     */
+    private void sendBatch (List<String> cmds) {
+      appendLine("Snd: " + String.join(";", cmds));
+      long start = System.nanoTime();
+      List<ByteBuffer> replies = tmc.queryBatch(cmds);
+      long nanos = System.nanoTime() - start;
+      int queries = 0;
+      for (String cmd : cmds) {
+        queries += cmd.indexOf('?') >= 0 ? 1 : 0;
+      }
+      Response value = new Response();
+      for (ByteBuffer reply : replies) {
+        value.parse(reply);
+        appendLine("Rsp: " + value);
+      }
+      if (replies.size() != queries) {
+        appendLine("Err: " + queries + " queries but " + replies.size() + " replies");
+      }
+      if (queries > 1) {
+        appendLine(String.format("Batched %d commands, %d queries in one round trip (%.1f ms)", cmds.size(), queries,
+                                 nanos / 1e6));
+      }
+    }
+
+    /**
+     *  Handles the "ACQ [source] [chunk]" command, which reads the oscilloscope's full (deep memory) waveform
+     *  record for source (default CHAN1) in windows of chunk points into a file.  If a capture of the same
+     *  source fails (such as after repeated timeouts) it's kept, and the next ACQ for it resumes from the
+     *  first window not yet stored
+     */
+    private void acquireWave (String cmd) throws Exception {
+      String[] args = cmd.trim().split("\\s+");
+      String source = args.length > 1 ? args[1].toUpperCase() : "CHAN1";
+      int chunk = args.length > 2 ? Integer.parseInt(args[2]) : WaveAcquirer.DEFAULT_CHUNK;
+      appendLine("Snd: " + cmd);
+      String key = sel.name + " " + source;
+      WaveAcquirer acq = unfinished.remove(key);
+      File file;
+      if (acq != null) {
+        acq.setSession(tmc);
+        file = acq.getFile();
+        appendLine(String.format("Resuming at point %d of %d", acq.getDone(), acq.getPoints()));
+      } else {
+        String dir = prefs.get("file.dir", System.getProperty("user.home"));
+        file = new File(dir, "wave-" + source + "-" + System.currentTimeMillis() + ".bin");
+        acq = new WaveAcquirer(tmc, source, chunk);
+      }
+      long start = System.nanoTime();
+      ByteBuffer record;
+      try {
+        record = acq.acquire(file, null);
+      } catch (Exception ex) {
+        if (acq.getFile() != null) {
+          unfinished.put(key, acq);
+          appendLine(String.format("Capture stopped at point %d of %d, enter ACQ %s again to resume", acq.getDone(),
+                                   acq.getPoints(), source));
+        } else {
+          acq.close();              // Failed before the record was set up, so start again next time
+        }
+        throw ex;
+      }
+      acq.close();
+      double secs = (System.nanoTime() - start) / 1e9;
+      appendLine(String.format("Rsp: %d points saved to %s (%.2f MB/s)", acq.getPoints(), file, acq.getPoints() / 1e6 / secs));
+      WaveViewer viewer = new WaveViewer(prefs, record, "WaveViewer - " + source + " " + file.getName());
+      viewer.device = sel.name;
+      viewer.channel = source;
+      viewer.setPreamble(acq.getPreamble());
+    }
+
+    /**
+     *  Handles the "LOG [count] [query]" command, which takes count readings (or reads until the "stop"
+     *  command, if count is 0 or omitted) as fast as the device allows, reporting statistics once a second.
+     *  Without a query the meter is set up for DC volts once and then sent :READ? for each reading.  The
+     *  readings are also kept in the trend store, in a series named after the device and query
+     */
+    private void logReadings (String cmd) {
+      String[] args = cmd.trim().split("\\s+", 3);
+      long count = args.length > 1 ? Long.parseLong(args[1]) : 0;
+      String query = args.length > 2 ? args[2] : DmmLogger.DEFAULT_QUERY;
+      String setup = args.length > 2 ? null : DmmLogger.DEFAULT_SETUP;
+      appendLine("Snd: " + cmd);
+      DmmLogger logger = new DmmLogger(tmc, query, 100000);
+      try {
+        logger.setTrend(getTrends(), sel.name.split(" ")[0] + query);
+      } catch (IOException ex) {
+        appendLine("Trends not kept: " + ex);
+      }
+      loggers.add(logger);
+      try {
+        logger.run(setup, count, 1000, log -> appendLine("Log: " + log.getStatus()));
+      } finally {
+        loggers.remove(logger);
+      }
+    }
+
+    /**
+     *  Sends cmd using large transfers when the device allows them.  If a large transfer fails with a framing
+     *  error the device is switched to the compatible (one block per request) mode and the command is retried
+     *  after an abort and clear (or, if that fails, on a fresh session).  Other errors, such as timeouts, are
+     *  passed on without changing the mode
+     */
+    private BlockDecoder sendQuery (String cmd, ResponseSink sink) throws IOException {
+      BlockDecoder decoder = new BlockDecoder(sink);
+      try {
+        tmc.query(cmd, decoder);
+        return cmd.contains("?") ? decoder : null;
+      } catch (RuntimeException ex) {
+        if (!sel.largeXfer || !cmd.contains("?") || !USBTMC.isFramingError(ex)) {
+          throw ex;
         }
-        return len + 2;
+        sel.largeXfer = false;
+        appendLine("Large transfer failed (" + ex.getMessage() + "), using compatible mode for " + sel.name);
+        if (tmc.recover()) {
+          pool.release(tmc);
+        } else {
+          tmc.resetDevice();
+          pool.invalidate(tmc);
+        }
+        tmc = null;
+        tmc = pool.acquire(sel, sel.serial);
+        sel.getMetrics().retries.increment();
+        decoder = new BlockDecoder(sink);
+        tmc.query(cmd, decoder);
+        return decoder;
       }
     }
-    return 0;
   }
 
   private RglComm () {
     super("RglComm");
-    select = new JComboBox<>(devices.toArray(new Rigol[0]));
-    text.setFont(getCodeFont(12));
-    text.setColumns(40);
-    text.setRows(20);
-    text.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-    text.setEditable(false);
-    JScrollPane scroll = new JScrollPane(text, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
-    add(scroll, BorderLayout.CENTER);
+    choices = getChoices();
+    select = new JComboBox<>(choices.toArray(new Rigol[0]));
+    log = new LogView(getCodeFont(12), 20, 40, new File(System.getProperty("user.home"), "RglComm.log"));
+    add(log, BorderLayout.CENTER);
     JPanel controls = new JPanel(new FlowLayout());
     command = new PopMenuTextField(select);
     command.setText("*IDN?");
@@ -230,7 +652,17 @@ public class RglComm extends JFrame {
     } catch (Exception ex) {
       // Ignore
     }
-    select.addActionListener(ev -> prefs.putInt("select", select.getSelectedIndex()));
+    // Serial entries come and go with the devices attached, so they're remembered by name
+    String last = prefs.get("select.name", "");
+    for (Rigol item : choices) {
+      if (item.name.equals(last)) {
+        select.setSelectedItem(item);
+      }
+    }
+    select.addActionListener(ev -> {
+      prefs.putInt("select", select.getSelectedIndex());
+      prefs.put("select.name", select.getSelectedItem().toString());
+    });
     controls.add(select);
     JButton run = new JButton("RUN");
     run.addActionListener(e -> runCommand());
@@ -246,6 +678,7 @@ public class RglComm extends JFrame {
     add(controls, BorderLayout.SOUTH);
     setLocationRelativeTo(null);
     setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+    Runtime.getRuntime().addShutdownHook(new Thread(pool::closeAll));
     pack();
     setLocation(prefs.getInt("window.x", 10), prefs.getInt("window.y", 10));
     // Track window resize/move events and save in prefs
@@ -259,10 +692,29 @@ public class RglComm extends JFrame {
     setVisible(true);
   }
 
+  /**
+   *  Queues the command line on the selected device's worker.  Commands for the same device run in order
+   *  while those for different devices run in parallel
+   */
   private void runCommand () {
-    if (!running){
-      Thread worker = new Thread(this::doCommand);
-      worker.start();
+    String cmd = command.getText();
+    if (doLocalCommand(cmd)) {
+      return;
+    }
+    Rigol sel = (Rigol) select.getSelectedItem();
+    if (sel == null) {
+      return;
+    }
+    command.setText("");
+    if (cmd.toLowerCase().startsWith("mirror")) {
+      // Live view of the device's screen, such as "mirror :DISP:DATA?"
+      String query = cmd.substring(6).trim();
+      new ScreenMirror(pool, scheduler, sel, query.isEmpty() ? ":DISP:DATA?" : query);
+      return;
+    }
+    int ahead = scheduler.submit(sel.name, new Command(sel, cmd));
+    if (ahead > 0) {
+      appendLine("Queued: " + cmd + " (" + ahead + " ahead for " + sel.name + ")");
     }
   }
 
@@ -279,75 +731,56 @@ public class RglComm extends JFrame {
     }
   }
 
-  private byte[] sendCmd (String cmd) {
-    //System.out.print("Block Size: " + usb.maxPkt);
-    // Note: making blockSize larger than 128 breaks communication with some devices
-    int blockSize = Math.min(usb.maxPkt, 512);
-    ByteArrayOutputStream buf = new ByteArrayOutputStream();
-    for (int idx = 0; idx < cmd.length(); idx += blockSize) {
-      buf.reset();
-      int pktSize = Math.min(blockSize, cmd.length() - idx);
-      byte term = (byte) (idx + blockSize >= cmd.length() ? 0x01 : 0x00);
-      bTag++;
-      buf.write(1);                 //  0: MsgID
-      buf.write(bTag);              //  1: bTag
-      buf.write(bTag ^ 0xFF);       //  2: bTagInverse
-      buf.write(0x00);              //  3: Reserved
-      buf.write(pktSize & 0xFF);    //  4: TransferSize
-      buf.write(pktSize >> 8);      //  5: TransferSize
-      buf.write(0x00);              //  6: TransferSize
-      buf.write(0x00);              //  7: TransferSize
-      buf.write(term);              //  8: bmTransfer Attributes (EOM is set on last packet)
-      buf.write(0x00);              //  9: Reserved(0x00)
-      buf.write(0x00);              // 10: Reserved(0x00)
-      buf.write(0x00);              // 11: Reserved(0x00)
-      for (int ii = 0; ii < pktSize; ii++) {
-        buf.write(cmd.charAt(idx + ii));
-      }
-      while ((buf.size() & 0x03) != 0) {
-        buf.write(0x00);          // Pad to multiple of 4
+  /**
+   *  Receives block responses as they stream in.  Blocks small enough to display are collected into a single
+   *  buffer sized from the block header, while larger ones are written to a file rather than held in memory
+   */
+  private class ResponseSink implements BlockDecoder.Sink {
+    private static final long MAX_VIEW = 16 * 1024 * 1024;
+    ByteBuffer                body;
+    File                      file;
+    private FileChannel       channel;
+
+    public void begin (long length) throws IOException {
+      body = null;
+      if (channel != null) {
+        channel.close();
+        channel = null;
       }
-      if (buf.size() > blockSize) {
-        throw new IllegalStateException("buf.size(): " + buf.size() + " > " + "blockSize" + blockSize);
+      if (length >= 0 && length <= MAX_VIEW) {
+        body = ByteBuffer.allocate((int) length);
+      } else {
+        String dir = prefs.get("file.dir", System.getProperty("user.home"));
+        file = new File(dir, "capture-" + System.currentTimeMillis() + ".bin");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
       }
-      usb.send(buf.toByteArray());
-    }
-    if (cmd.contains("?")) {
-      bTag++;
-      ByteArrayOutputStream rec = new ByteArrayOutputStream();
-      buf.reset();
-      buf.write(2);                 //  0: MsgID
-      buf.write(bTag);              //  1: bTag
-      buf.write(bTag ^ 0xFF);       //  2: bTagInverse
-      buf.write(0x00);              //  3: Reserved
-      buf.write(blockSize & 0xFF);  //  4: TransferSize
-      buf.write(blockSize >> 8);    //  5: TransferSize
-      buf.write(0x00);              //  6: TransferSize
-      buf.write(0x00);              //  7: TransferSize
-      buf.write(0x00);              //  8: bmTransfer Attributes
-      buf.write(0x00);              //  9: Reserved(0x00)
-      buf.write(0x00);              // 10: Reserved(0x00)
-      buf.write(0x00);              // 11: Reserved(0x00)
-      byte[] data;
-      do {
-        if (buf.size() > blockSize) {
-          throw new IllegalStateException("buf.size(): " + buf.size() + " > " + "blockSize" + blockSize);
-        }
-        usb.send(buf.toByteArray());
-        // delay(50);
-        data = usb.receive();
-        //int size = ((int) data[4] & 0xFF) + (((int) data[5] & 0xFF) << 8);
-        for (int ii = 12; ii < data.length; ii++) {
-          rec.write(data[ii]);
+    }
+
+    public void accept (ByteBuffer data) throws IOException {
+      if (body != null) {
+        body.put(data);
+      } else {
+        while (data.hasRemaining()) {
+          channel.write(data);
         }
-      } while (data[8] == 0);
-      return rec.toByteArray();
+      }
+    }
+
+    public void end () throws IOException {
+      if (body != null) {
+        body.flip();
+      } else {
+        channel.close();
+        channel = null;
+      }
     }
-    return null;
   }
 
+  /**
+   *  Adds line to the log.  Can be called from any thread
+   */
   private void appendLine (String line) {
-    text.append(line + "\n");
-    text.setCaretPosition(text.getDocument().getLength());
+    log.append(line);
   }
 }
@@ -1,42 +1,24 @@
-import org.usb4java.*;
-
 class RglScan {
   static String doScan () {
     StringBuilder buf = new StringBuilder();
-    Context context = new Context();
-    int result = LibUsb.init(context);
-    if (result < 0) {
-      throw new LibUsbException("Unable to initialize libusb", result);
-    }
-    DeviceList list = new DeviceList();
-    result = LibUsb.getDeviceList(context, list);
-    if (result < 0) {
-      throw new LibUsbException("Unable to get device list", result);
-    }
+    DeviceRegistry registry = DeviceRegistry.shared();
     try {
       boolean deviceFound = false;
-      for (Device device : list) {
-        DeviceDescriptor desc = new DeviceDescriptor();
-        result = LibUsb.getDeviceDescriptor(device, desc);
-        if (result < 0) {
-          throw new LibUsbException("Unable to read device descriptor", result);
-        }
-        String usbClass = DescriptorUtils.getUSBClassName(desc.bDeviceClass());
-        short vend = desc.idVendor();
-        short prod = desc.idProduct();
-        if (!"hub".equalsIgnoreCase(usbClass) && vend == (short) 0x1AB1) {
+      for (DeviceRegistry.Info info : registry.getDevices()) {
+        short vend = info.vend;
+        short prod = info.prod;
+        if (vend == (short) 0x1AB1) {
           deviceFound = true;
           buf.append(String.format("\nVendor Id:    0x%04X\nProduct Id:   0x%04X%n", vend, prod));
-          DeviceHandle handle = new DeviceHandle();
-          if (LibUsb.open(device, handle) >= 0) {
+          // String descriptors are cached by the registry, so the device is only opened the first time
+          if (DeviceRegistry.readStrings(info, null)) {
             buf.append("Manufacturer: ");
-            buf.append(LibUsb.getStringDescriptor(handle, desc.iManufacturer()));
+            buf.append(info.manufacturer);
             buf.append("\nProduct:      ");
-            buf.append(LibUsb.getStringDescriptor(handle, desc.iProduct()));
+            buf.append(info.product);
             buf.append("\nSerialNumber: ");
-            buf.append(LibUsb.getStringDescriptor(handle, desc.iSerialNumber()));
+            buf.append(info.serial);
             buf.append("\n");
-            LibUsb.close(handle);
           }
         }
       }
@@ -45,10 +27,7 @@ class RglScan {
       }
     } catch (Exception ex) {
       buf.append(ex.getMessage());
-    } finally {
-      LibUsb.freeDeviceList(list, true);
     }
-    LibUsb.exit(context);
     return buf.toString();
   }
 
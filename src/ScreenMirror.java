@@ -0,0 +1,134 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ *  Live view of a device's screen.  The screen is captured (using a query such as :DISPlay:DATA?) again as
+ *  soon as the previous capture has been decoded, so the frame rate is limited only by the device and the
+ *  link.  Each capture is decoded by a BmpDecoder straight from the block stream into the same image, and
+ *  only the region that changed is repainted.  Captures run as separate tasks on the device's worker (see
+ *  DeviceScheduler), so commands entered while mirroring are run between frames.
+ */
+
+class ScreenMirror extends JFrame {
+  private final USBPool           pool;
+  private final DeviceScheduler   scheduler;
+  private final RglComm.Rigol     dev;
+  private final String            query;
+  private final BmpDecoder        decoder = new BmpDecoder();
+  private final Surface           surface = new Surface();
+  private final JLabel            status = new JLabel(" ");
+  private volatile boolean        running = true;
+  private long                    mark, markBytes;
+  private int                     markFrames;
+  private Dimension               size;
+
+  private class Surface extends JPanel {
+    @Override
+    public void paintComponent (Graphics g) {
+      super.paintComponent(g);
+      Image img = decoder.getImage();
+      if (img != null) {
+        synchronized (img) {
+          g.drawImage(img, 0, 0, null);
+        }
+      }
+    }
+  }
+
+  /**
+   *  @param query query that returns the screen as an image, such as ":DISP:DATA?"
+   */
+  ScreenMirror (USBPool pool, DeviceScheduler scheduler, RglComm.Rigol dev, String query) {
+    super("ScreenMirror - " + dev.name);
+    this.pool = pool;
+    this.scheduler = scheduler;
+    this.dev = dev;
+    this.query = query.endsWith("\n") ? query : query + '\n';
+    surface.setPreferredSize(new Dimension(800, 480));
+    add(surface, BorderLayout.CENTER);
+    status.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+    add(status, BorderLayout.SOUTH);
+    setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+    addWindowListener(new WindowAdapter() {
+      @Override
+      public void windowClosed (WindowEvent ev) {
+        running = false;
+      }
+    });
+    pack();
+    setLocationRelativeTo(null);
+    setVisible(true);
+    mark = System.nanoTime();
+    scheduler.submit(dev.name, this::capture);
+  }
+
+  /**
+   *  Captures and decodes one frame then, unless the window has been closed, queues the next capture
+   */
+  private void capture () {
+    if (!running) {
+      return;
+    }
+    USBTMC tmc = null;
+    try {
+      tmc = pool.acquire(dev, dev.serial);
+      long start = System.nanoTime();
+      BlockDecoder block = new BlockDecoder(decoder);
+      tmc.query(query, block);
+      if (!block.isBlock()) {
+        throw new IllegalStateException("Expected block response, got: " + block.getText());
+      }
+      long now = System.nanoTime();
+      dev.addTransfer(tmc.asyncIn && tmc.largeXfer, (int) block.getLength(), now - start);
+      pool.release(tmc);
+      tmc = null;
+      showFrame(now);
+      scheduler.submit(dev.name, this::capture);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      if (tmc != null) {
+        if (tmc.recover()) {
+          pool.release(tmc);
+        } else {
+          tmc.resetDevice();
+          pool.invalidate(tmc);
+        }
+      }
+      running = false;
+      SwingUtilities.invokeLater(() -> status.setText("Stopped: " + ex));
+    }
+  }
+
+  private void showFrame (long now) {
+    markFrames++;
+    markBytes += decoder.getLength();
+    String text = null;
+    if (now - mark >= 1000000000L) {
+      double secs = (now - mark) / 1e9;
+      text = String.format("%.1f fps  %d bytes/frame  %.2f MB/s", markFrames / secs, markBytes / markFrames,
+                           markBytes / 1e6 / secs);
+      mark = now;
+      markFrames = 0;
+      markBytes = 0;
+    }
+    Rectangle dirty = decoder.getDirty();
+    Image img = decoder.getImage();
+    Dimension dim = new Dimension(img.getWidth(null), img.getHeight(null));
+    String update = text;
+    SwingUtilities.invokeLater(() -> {
+      if (!dim.equals(size)) {
+        size = dim;
+        surface.setPreferredSize(dim);
+        pack();
+        surface.repaint();
+      } else if (dirty != null) {
+        surface.repaint(dirty);
+      }
+      if (update != null) {
+        status.setText(update + (dirty != null ? String.format("  changed %dx%d", dirty.width, dirty.height) : ""));
+      }
+    });
+  }
+}
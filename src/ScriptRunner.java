@@ -0,0 +1,572 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ *  Headless runner for measurement scripts, so measurements can run unattended without starting Swing.
+ *  The script is parsed once into a plan of steps which is then executed against an open session.
+ *  Consecutive SCPI commands that don't return a response are batched into a single program message
+ *  (joined with ';', and each rooted with a leading ':' so it means the same as it would on its own) of up
+ *  to BATCH bytes.  Script syntax (one statement per line, '#' starts a comment):
+ *
+ *    DEVICE DM3058 [serial]    Selects the device to talk to by the start of its name (and serial number)
+ *    DEVICE SIM [model]        Selects a simulated instrument (see SimRigol), for trying out scripts
+ *    :FUNC:VOLT:DC             Sends a command
+ *    v = :MEAS:VOLT:DC?        Sends a query and captures the response in variable v (also printed)
+ *    SAVE file :DISP:DATA?     Sends a query and writes the body of its block response to file
+ *    ARCHIVE file [source]     Reads the preamble and waveform (of source, such as CHAN1) and appends them
+ *                              as a record to capture archive file (see CaptureArchive)
+ *    ANALYZE [source] [window] Reads the preamble and waveform (of source) and measures it, setting variables
+ *                              vpp, vmin, vmax, vavg, vrms, freq, period and rise, and its spectrum (using
+ *                              window, such as HANN or FLATTOP), setting fft_peak (Hz) and fft_vrms
+ *    SET n = 10                Sets a variable to a number, or to a simple expression, such as ${n} * 2
+ *    LOOP 10 [i] ... END       Repeats the enclosed statements, optionally counting in variable i from 1
+ *    WAIT 250                  Waits for a number of milliseconds (DLY n waits for n seconds)
+ *    WAITOPC [ms]              Waits (up to ms, default 10000) for the operations started by the commands
+ *                              sent so far to complete, using a service request if the device can send one,
+ *                              otherwise *OPC?
+ *    WAITSRQ [ms]              Waits (up to ms, default 10000) for the device to request service (enabled
+ *                              with *SRE and *ESE) and sets variable stb to its status byte
+ *    PRINT text                Prints text
+ *    BATCH 512                 Sets the maximum size of a batched program message (1 disables batching)
+ *
+ *  ${name} is replaced by the value of variable name in any statement.  Variables can also be set on the
+ *  command line, such as: java -cp RglComm.jar ScriptRunner script.txt n=100
+ */
+
+class ScriptRunner {
+  private final Map<String,String>  vars = new LinkedHashMap<>();
+  private final PrintStream         out;
+  private final USBPool             pool;
+  private RglComm.Rigol             device;
+  private USBTMC                    tmc;
+  private int                       batch = 512;
+  private final Map<String,CaptureArchive> archives = new HashMap<>();
+  private WaveAnalysis              analysis;
+
+  ScriptRunner (USBPool pool, PrintStream out) {
+    this.pool = pool;
+    this.out = out;
+  }
+
+  /*
+   *  Plan steps
+   */
+
+  abstract static class Step {
+    final int line;
+
+    Step (int line) {
+      this.line = line;
+    }
+
+    abstract void run (ScriptRunner runner) throws Exception;
+  }
+
+  /**
+   *  One or more consecutive commands, which are sent as few program messages as BATCH allows
+   */
+  static class Write extends Step {
+    final List<String> cmds = new ArrayList<>();
+
+    Write (int line, String cmd) {
+      super(line);
+      cmds.add(cmd);
+    }
+
+    void run (ScriptRunner runner) {
+      StringBuilder buf = new StringBuilder();
+      for (String cmd : cmds) {
+        cmd = USBTMC.root(runner.expand(cmd));
+        if (buf.length() > 0 && buf.length() + cmd.length() + 2 > runner.batch) {
+          runner.session().write(buf.append('\n').toString());
+          buf.setLength(0);
+        }
+        buf.append(buf.length() > 0 ? ";" : "").append(cmd);
+      }
+      runner.session().write(buf.append('\n').toString());
+    }
+  }
+
+  static class Query extends Step {
+    final String var, cmd;
+
+    Query (int line, String var, String cmd) {
+      super(line);
+      this.var = var;
+      this.cmd = cmd;
+    }
+
+    void run (ScriptRunner runner) {
+      String value = runner.session().queryText(runner.expand(cmd));
+      runner.vars.put(var, value);
+      runner.out.println(var + " = " + value);
+    }
+  }
+
+  static class Save extends Step {
+    final String file, cmd;
+
+    Save (int line, String file, String cmd) {
+      super(line);
+      this.file = file;
+      this.cmd = cmd;
+    }
+
+    void run (ScriptRunner runner) throws IOException {
+      File dst = new File(runner.expand(file));
+      try (FileChannel channel = FileChannel.open(dst.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING)) {
+        BlockDecoder decoder = new BlockDecoder(new BlockDecoder.FileSink(channel));
+        runner.session().query(runner.expand(cmd) + '\n', decoder);
+        if (!decoder.isBlock()) {
+          throw new IllegalStateException("Expected block response, got: " + decoder.getText());
+        }
+        runner.out.println("Saved " + decoder.getLength() + " bytes to " + dst);
+      }
+    }
+  }
+
+  static class Archive extends Step {
+    final String file, source;
+
+    Archive (int line, String file, String source) {
+      super(line);
+      this.file = file;
+      this.source = source;
+    }
+
+    void run (ScriptRunner runner) throws IOException {
+      USBTMC tmc = runner.session();
+      String chan = source != null ? runner.expand(source) : "";
+      if (!chan.isEmpty()) {
+        tmc.write(":WAV:SOUR " + chan + '\n');
+      }
+      WavePreamble pre = WavePreamble.parse(tmc.queryText(":WAV:PRE?"));
+      CaptureArchive archive = runner.archive(runner.expand(file));
+      String device = runner.device != null ? runner.device.name : "SIM";
+      BlockDecoder decoder = new BlockDecoder(archive.appender(device, chan, System.currentTimeMillis(), pre));
+      tmc.query(":WAV:DATA?\n", decoder);
+      if (!decoder.isBlock()) {
+        throw new IllegalStateException("Expected block response, got: " + decoder.getText());
+      }
+      runner.out.println("Archived " + decoder.getLength() + " bytes as record " + (archive.size() - 1) + " of " + file);
+    }
+  }
+
+  static class Analyze extends Step {
+    final String              source;
+    final WaveAnalysis.Window window;
+
+    Analyze (int line, String source, WaveAnalysis.Window window) {
+      super(line);
+      this.source = source;
+      this.window = window;
+    }
+
+    void run (ScriptRunner runner) throws IOException {
+      USBTMC tmc = runner.session();
+      String chan = source != null ? runner.expand(source) : "";
+      if (!chan.isEmpty()) {
+        tmc.write(":WAV:SOUR " + chan + '\n');
+      }
+      WavePreamble pre = WavePreamble.parse(tmc.queryText(":WAV:PRE?"));
+      BlockDecoder.BufferSink sink = new BlockDecoder.BufferSink();
+      BlockDecoder decoder = new BlockDecoder(sink);
+      tmc.query(":WAV:DATA?\n", decoder);
+      if (!decoder.isBlock()) {
+        throw new IllegalStateException("Expected block response, got: " + decoder.getText());
+      }
+      float[] volts = new WaveDecoder(pre).toVolts(sink.body);
+      if (runner.analysis == null) {
+        runner.analysis = new WaveAnalysis();         // Kept so its work arrays are reused in loops
+      }
+      WaveAnalysis.Measurements meas = runner.analysis.measure(volts, volts.length, pre.xIncrement);
+      WaveAnalysis.Spectrum spectrum = runner.analysis.spectrum(volts, volts.length, pre.xIncrement, window);
+      int peak = spectrum.getPeak();
+      runner.vars.put("vpp", Double.toString(meas.getPeakToPeak()));
+      runner.vars.put("vmin", Double.toString(meas.min));
+      runner.vars.put("vmax", Double.toString(meas.max));
+      runner.vars.put("vavg", Double.toString(meas.mean));
+      runner.vars.put("vrms", Double.toString(meas.rms));
+      runner.vars.put("freq", Double.toString(meas.frequency));
+      runner.vars.put("period", Double.toString(meas.getPeriod()));
+      runner.vars.put("rise", Double.toString(meas.riseTime));
+      runner.vars.put("fft_peak", Double.toString(peak * spectrum.binWidth));
+      runner.vars.put("fft_vrms", Double.toString(spectrum.magnitude[peak]));
+      runner.out.println(String.format("%s%d points: %s%n  FFT (%s): peak %.6g Hz, %.4g Vrms", chan.isEmpty() ? "" : chan + " ",
+                                       volts.length, meas, window, peak * spectrum.binWidth, spectrum.magnitude[peak]));
+    }
+  }
+
+  static class Assign extends Step {
+    final String var, expr;
+
+    Assign (int line, String var, String expr) {
+      super(line);
+      this.var = var;
+      this.expr = expr;
+    }
+
+    void run (ScriptRunner runner) {
+      runner.vars.put(var, evaluate(runner.expand(expr)));
+    }
+  }
+
+  static class Loop extends Step {
+    final String      count, var;
+    final List<Step>  body = new ArrayList<>();
+
+    Loop (int line, String count, String var) {
+      super(line);
+      this.count = count;
+      this.var = var;
+    }
+
+    void run (ScriptRunner runner) throws Exception {
+      int times = (int) Double.parseDouble(runner.expand(count));
+      for (int ii = 1; ii <= times; ii++) {
+        if (var != null) {
+          runner.vars.put(var, Integer.toString(ii));
+        }
+        runner.run(body);
+      }
+    }
+  }
+
+  static class Wait extends Step {
+    final String  millis;
+    final int     scale;
+
+    Wait (int line, String millis, int scale) {
+      super(line);
+      this.millis = millis;
+      this.scale = scale;
+    }
+
+    void run (ScriptRunner runner) throws InterruptedException {
+      Thread.sleep((long) (Double.parseDouble(runner.expand(millis)) * scale));
+    }
+  }
+
+  static class WaitOpc extends Step {
+    final String  millis;
+    final boolean srq;
+
+    /**
+     *  @param srq true to wait for any service request, false to wait for operation complete
+     */
+    WaitOpc (int line, String millis, boolean srq) {
+      super(line);
+      this.millis = millis;
+      this.srq = srq;
+    }
+
+    void run (ScriptRunner runner) {
+      int timeout = (int) Double.parseDouble(runner.expand(millis));
+      if (srq) {
+        runner.vars.put("stb", Integer.toString(runner.session().waitService(timeout)));
+      } else {
+        runner.session().waitComplete(timeout);
+      }
+    }
+  }
+
+  static class Print extends Step {
+    final String text;
+
+    Print (int line, String text) {
+      super(line);
+      this.text = text;
+    }
+
+    void run (ScriptRunner runner) {
+      runner.out.println(runner.expand(text));
+    }
+  }
+
+  static class Device extends Step {
+    final String name, serial;
+
+    Device (int line, String name, String serial) {
+      super(line);
+      this.name = name;
+      this.serial = serial;
+    }
+
+    void run (ScriptRunner runner) {
+      runner.select(runner.expand(name), serial != null ? runner.expand(serial) : null);
+    }
+  }
+
+  static class Batch extends Step {
+    final int size;
+
+    Batch (int line, int size) {
+      super(line);
+      this.size = size;
+    }
+
+    void run (ScriptRunner runner) {
+      runner.batch = size;
+    }
+  }
+
+  /*
+   *  Compiler
+   */
+
+  /**
+   *  Parses script into a plan
+   */
+  static List<Step> compile (List<String> lines) {
+    int[] idx = {0};
+    List<Step> plan = compile(lines, idx, false);
+    if (idx[0] < lines.size()) {
+      throw new IllegalArgumentException("Line " + (idx[0] + 1) + ": END without LOOP");
+    }
+    return plan;
+  }
+
+  private static List<Step> compile (List<String> lines, int[] idx, boolean inLoop) {
+    List<Step> steps = new ArrayList<>();
+    while (idx[0] < lines.size()) {
+      int line = idx[0] + 1;
+      String text = lines.get(idx[0]++);
+      int hash = text.indexOf('#');
+      if (hash == 0 || (hash > 0 && Character.isWhitespace(text.charAt(hash - 1)))) {
+        text = text.substring(0, hash);
+      }
+      text = text.trim();
+      if (text.isEmpty()) {
+        continue;
+      }
+      String[] words = text.split("\\s+");
+      String keyword = words[0].toUpperCase();
+      try {
+        switch (keyword) {
+          case "END":
+            if (!inLoop) {
+              idx[0]--;
+            }
+            return steps;
+          case "LOOP": {
+            Loop loop = new Loop(line, words[1], words.length > 2 ? words[2] : null);
+            loop.body.addAll(compile(lines, idx, true));
+            steps.add(loop);
+          } break;
+          case "DEVICE":
+            steps.add(new Device(line, words[1], words.length > 2 ? words[2] : null));
+            break;
+          case "SET": {
+            int eq = text.indexOf('=');
+            steps.add(new Assign(line, text.substring(3, eq).trim(), text.substring(eq + 1).trim()));
+          } break;
+          case "WAIT":
+            steps.add(new Wait(line, words[1], 1));
+            break;
+          case "DLY":
+            steps.add(new Wait(line, words.length > 1 ? words[1] : "1", 1000));
+            break;
+          case "WAITOPC":
+          case "WAITSRQ":
+            steps.add(new WaitOpc(line, words.length > 1 ? words[1] : "10000", "WAITSRQ".equals(keyword)));
+            break;
+          case "PRINT":
+            steps.add(new Print(line, text.substring(5).trim()));
+            break;
+          case "SAVE":
+            steps.add(new Save(line, words[1], text.substring(text.indexOf(words[1]) + words[1].length()).trim()));
+            break;
+          case "ARCHIVE":
+            steps.add(new Archive(line, words[1], words.length > 2 ? words[2] : null));
+            break;
+          case "ANALYZE":
+            steps.add(new Analyze(line, words.length > 1 ? words[1] : null,
+                                  WaveAnalysis.Window.valueOf(words.length > 2 ? words[2].toUpperCase() : "HANN")));
+            break;
+          case "BATCH":
+            steps.add(new Batch(line, Integer.parseInt(words[1])));
+            break;
+          default: {
+            int eq = text.indexOf('=');
+            if (eq > 0 && text.substring(0, eq).trim().matches("\\w+")) {
+              steps.add(new Query(line, text.substring(0, eq).trim(), text.substring(eq + 1).trim()));
+            } else if (text.contains("?")) {
+              steps.add(new Query(line, "rsp", text));
+            } else {
+              // Merge consecutive commands into one step so they can be sent as one program message
+              Step last = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+              if (last instanceof Write) {
+                ((Write) last).cmds.add(text);
+              } else {
+                steps.add(new Write(line, text));
+              }
+            }
+          }
+        }
+      } catch (IndexOutOfBoundsException ex) {
+        throw new IllegalArgumentException("Line " + line + ": missing argument in \"" + text + "\"");
+      }
+    }
+    if (inLoop) {
+      throw new IllegalArgumentException("Line " + lines.size() + ": LOOP without END");
+    }
+    return steps;
+  }
+
+  /*
+   *  Execution
+   */
+
+  void run (List<Step> plan) throws Exception {
+    for (Step step : plan) {
+      try {
+        step.run(this);
+      } catch (Exception ex) {
+        if (step instanceof Loop) {
+          throw ex;
+        }
+        throw new IllegalStateException("Line " + step.line + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  void setVar (String name, String value) {
+    vars.put(name, value);
+  }
+
+  private void select (String name, String serial) {
+    release();
+    device = null;
+    if ("SIM".equalsIgnoreCase(name)) {
+      tmc = new USBTMC(new SimRigol(serial != null ? serial : "SIM4024", 512));
+    } else {
+      for (RglComm.Rigol dev : RglComm.devices) {
+        if (dev.name.toUpperCase().startsWith(name.toUpperCase())) {
+          device = dev;
+          break;
+        }
+      }
+      if (device == null) {
+        throw new IllegalArgumentException("Unknown device: " + name);
+      }
+      tmc = pool.acquire(device, serial);
+    }
+    // Listen from the start, so WAITSRQ sees a service request that arrives before it runs
+    tmc.listenForService();
+  }
+
+  private USBTMC session () {
+    if (tmc == null) {
+      throw new IllegalStateException("No DEVICE selected");
+    }
+    return tmc;
+  }
+
+  /**
+   *  Returns the session to the pool (which keeps it open for the next script)
+   */
+  void release () {
+    if (tmc != null) {
+      if (tmc.usb instanceof SimRigol) {
+        tmc.close();
+      } else {
+        pool.release(tmc);
+      }
+      tmc = null;
+    }
+  }
+
+  private CaptureArchive archive (String file) throws IOException {
+    CaptureArchive archive = archives.get(file);
+    if (archive == null) {
+      archives.put(file, archive = new CaptureArchive(new File(file)));
+    }
+    return archive;
+  }
+
+  /**
+   *  Writes the index of, and closes, any archives used by ARCHIVE
+   */
+  void closeArchives () throws IOException {
+    for (CaptureArchive archive : archives.values()) {
+      archive.close();
+    }
+    archives.clear();
+  }
+
+  /**
+   *  Replaces ${name} with the value of variable name
+   */
+  String expand (String text) {
+    int idx = text.indexOf("${");
+    if (idx < 0) {
+      return text;
+    }
+    StringBuilder buf = new StringBuilder();
+    int last = 0;
+    while (idx >= 0) {
+      int end = text.indexOf('}', idx);
+      if (end < 0) {
+        break;
+      }
+      String name = text.substring(idx + 2, end);
+      String value = vars.get(name);
+      if (value == null) {
+        throw new IllegalArgumentException("Undefined variable: " + name);
+      }
+      buf.append(text, last, idx).append(value);
+      last = end + 1;
+      idx = text.indexOf("${", last);
+    }
+    return buf.append(text.substring(last)).toString();
+  }
+
+  /**
+   *  Evaluates a number, or two numbers joined by one of + - * /
+   */
+  static String evaluate (String expr) {
+    String[] parts = expr.split("\\s+");
+    if (parts.length == 3) {
+      double aa = Double.parseDouble(parts[0]);
+      double bb = Double.parseDouble(parts[2]);
+      double val;
+      switch (parts[1]) {
+        case "+": val = aa + bb; break;
+        case "-": val = aa - bb; break;
+        case "*": val = aa * bb; break;
+        case "/": val = aa / bb; break;
+        default: throw new IllegalArgumentException("Unknown operator: " + parts[1]);
+      }
+      return val == Math.rint(val) && Math.abs(val) < 1e15 ? Long.toString((long) val) : Double.toString(val);
+    }
+    Double.parseDouble(expr);
+    return expr;
+  }
+
+  public static void main (String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Usage: java -cp RglComm.jar ScriptRunner <script> [name=value ...]");
+      return;
+    }
+    List<Step> plan = compile(Files.readAllLines(new File(args[0]).toPath()));
+    USBPool pool = new USBPool();
+    ScriptRunner runner = new ScriptRunner(pool, System.out);
+    for (int ii = 1; ii < args.length; ii++) {
+      int eq = args[ii].indexOf('=');
+      if (eq > 0) {
+        runner.setVar(args[ii].substring(0, eq), args[ii].substring(eq + 1));
+      }
+    }
+    try {
+      runner.run(plan);
+    } finally {
+      runner.release();
+      runner.closeArchives();
+      pool.closeAll();
+    }
+  }
+}
@@ -0,0 +1,387 @@
+import org.usb4java.LibUsbException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import static org.usb4java.LibUsb.*;
+
+/**
+ *  In-process simulation of a Rigol instrument that speaks USBTMC framing, so the protocol and decode code
+ *  can be tested and benchmarked without hardware.  It checks bTag/bTagInverse on every header, collects
+ *  DEV_DEP_MSG_OUT payloads until EOM, honours the TransferSize of each REQUEST_DEV_DEP_MSG_IN (setting EOM
+ *  on the last message of a response) and answers a small set of queries:
+ *
+ *    *IDN?, *OPC?              Identification string and "1"
+ *    :ACQ:MDEP?                Memory depth (depth)
+ *    :WAV:DATA?                Synthetic sine wave as a #9 block, 600 points, or the :WAV:STAR to :WAV:STOP
+ *                              range of the deep memory record when :WAV:MODE is RAW
+ *    :WAV:PRE?                 Waveform preamble matching the synthetic record
+ *    :DISP:DATA?, :HCOP:SDUM:DATA?   Synthetic 24 bit BMP screen image as a #9 block
+ *    :MEAS:ALL?                Comma separated list of readings (like a DP832)
+ *    *ESR?, *STB?              Event status register (which is then cleared) and status byte
+ *    *ESE?, *SRE?              Event status enable and service request enable registers
+ *    Any other query           A reading near 1.234 in NR3 format (like a DM3058)
+ *
+ *  *CLS, *ESE and *SRE are also handled and *OPC sets the OPC bit of the event status register after
+ *  opcMillis, so service requests can be tried out.  They are sent to the service listener, on a background
+ *  thread, as if they came from an interrupt-IN endpoint, and readStatusByte() answers READ_STATUS_BYTE.
+ *  latencyNanos delays the first byte of each response, bytesPerSec limits the transfer rate and maxXfer
+ *  limits the payload of each DEV_DEP_MSG_IN (to mimic devices that only return one block per request).
+ */
+
+class SimRigol implements Transport {
+  private static final int      HDR = 12;
+  private final String          idn;
+  private final int             maxPkt;
+  int                           maxXfer = Integer.MAX_VALUE;
+  long                          latencyNanos;
+  double                        bytesPerSec;
+  int                           depth = 24000000;
+  int                           bmpWidth = 800, bmpHeight = 480;
+  private final ByteArrayOutputStream cmdBuf = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream rspBuf = new ByteArrayOutputStream();
+  private final Random          random = new Random(1);
+  private ByteBuffer            output;         // Response bytes not yet requested
+  private ByteBuffer            inXfer;         // Current bulk-IN transfer (header, payload and padding)
+  private boolean               fresh;
+  private boolean               open = true;
+  private byte                  outTag;
+  private String                waveMode = "NORM";
+  private long                  waveStart = 1, waveStop = 1200;
+  private int                   frame;
+  long                          opcMillis;      // Time taken by the operations that *OPC waits for
+  private int                   ese, sre, esr;
+  private volatile IntConsumer  serviceListener;
+
+  SimRigol (String model, int maxPkt) {
+    this.idn = "Rigol Technologies," + model + ",SIM0000000001,00.01.00";
+    this.maxPkt = maxPkt;
+  }
+
+  public int getMaxPkt () {
+    return maxPkt;
+  }
+
+  public void send (ByteBuffer data) {
+    int pos = data.position();
+    if (data.remaining() < HDR || (data.remaining() & 0x03) != 0) {
+      throw new LibUsbException("Bad bulk-OUT transfer length: " + data.remaining(), ERROR_IO);
+    }
+    int msgId = data.get(pos) & 0xFF;
+    byte tag = data.get(pos + 1);
+    if (tag == 0 || data.get(pos + 2) != (byte) ~tag) {
+      throw new LibUsbException("Bad bTag", ERROR_IO);
+    }
+    int size = getInt(data, pos + 4);
+    if (msgId == 1) {
+      if (HDR + size > data.remaining()) {
+        throw new LibUsbException("TransferSize exceeds transfer", ERROR_IO);
+      }
+      for (int ii = 0; ii < size; ii++) {
+        cmdBuf.write(data.get(pos + HDR + ii));
+      }
+      if ((data.get(pos + 8) & 0x01) != 0) {
+        execute(new String(cmdBuf.toByteArray()));
+        cmdBuf.reset();
+      }
+    } else if (msgId == 2) {
+      outTag = tag;
+      if (output != null && output.hasRemaining()) {
+        int count = Math.min(Math.min(size, maxXfer), output.remaining());
+        boolean eom = count == output.remaining();
+        inXfer = ByteBuffer.allocate((HDR + count + 3) & ~0x03);
+        inXfer.put((byte) 2).put(outTag).put((byte) ~outTag).put((byte) 0);
+        putInt(inXfer, count);
+        inXfer.put((byte) (eom ? 0x01 : 0x00)).put((byte) 0).put((byte) 0).put((byte) 0);
+        ByteBuffer src = output.duplicate();
+        src.limit(src.position() + count);
+        inXfer.put(src);
+        output.position(output.position() + count);
+        inXfer.clear();
+        fresh = true;
+      } else {
+        inXfer = null;
+      }
+    } else {
+      throw new LibUsbException("Unsupported MsgID: " + msgId, ERROR_IO);
+    }
+    data.position(data.limit());
+  }
+
+  public int receive (ByteBuffer dst, int length) {
+    if (inXfer == null || !inXfer.hasRemaining()) {
+      // Nothing was requested, or nothing to send, so a real device would not respond
+      throw new LibUsbException("Unable to receive data", ERROR_TIMEOUT);
+    }
+    int size = Math.min(Math.min((length + maxPkt - 1) / maxPkt * maxPkt, dst.remaining()), inXfer.remaining());
+    long delay = (fresh ? latencyNanos : 0) + (bytesPerSec > 0 ? (long) (size * 1e9 / bytesPerSec) : 0);
+    fresh = false;
+    if (delay > 0) {
+      long until = System.nanoTime() + delay;
+      while (System.nanoTime() < until) {
+        Thread.yield();
+      }
+    }
+    ByteBuffer src = inXfer.duplicate();
+    src.limit(src.position() + size);
+    dst.put(src);
+    inXfer.position(inXfer.position() + size);
+    return size;
+  }
+
+  public boolean abortIn (byte tag) {
+    output = inXfer = null;
+    return true;
+  }
+
+  public boolean clear () {
+    cmdBuf.reset();
+    output = inXfer = null;
+    return true;
+  }
+
+  public synchronized int readStatusByte () {
+    return statusByte();
+  }
+
+  public boolean setServiceListener (IntConsumer listener) {
+    serviceListener = listener;
+    return true;
+  }
+
+  /**
+   *  @return status byte, with the ESB bit (5) summarizing the enabled event status bits and the MSS bit (6)
+   *  summarizing the bits enabled by *SRE
+   */
+  private int statusByte () {
+    int stb = (esr & ese) != 0 ? 0x20 : 0;
+    return stb | ((stb & sre) != 0 ? 0x40 : 0);
+  }
+
+  /**
+   *  Sets bits in the event status register, requesting service if that sets MSS in the status byte
+   */
+  private synchronized void setEvent (int bits) {
+    boolean before = (statusByte() & 0x40) != 0;
+    esr |= bits;
+    int stb = statusByte();
+    IntConsumer listener = serviceListener;
+    if (!before && (stb & 0x40) != 0 && listener != null) {
+      listener.accept(stb);
+    }
+  }
+
+  public boolean isAlive () {
+    return open;
+  }
+
+  public void resetDevice () {
+    cmdBuf.reset();
+    output = inXfer = null;
+  }
+
+  public void close () {
+    open = false;
+  }
+
+  /*
+   *  Command interpreter
+   */
+
+  private void execute (String msg) {
+    rspBuf.reset();
+    for (String unit : msg.trim().split(";")) {
+      unit = unit.trim();
+      if (unit.isEmpty()) {
+        continue;
+      }
+      int space = unit.indexOf(' ');
+      String header = (space > 0 ? unit.substring(0, space) : unit).toUpperCase();
+      String arg = space > 0 ? unit.substring(space + 1).trim() : "";
+      if (header.endsWith("?")) {
+        if (rspBuf.size() > 0) {
+          rspBuf.write(';');
+        }
+        query(header, arg);
+      } else {
+        command(header, arg);
+      }
+    }
+    if (rspBuf.size() > 0) {
+      rspBuf.write('\n');
+      output = ByteBuffer.wrap(rspBuf.toByteArray());
+    }
+  }
+
+  /**
+   *  Matches header against a command given in short form (such as ":WAV:DATA?") allowing for long forms
+   *  (such as ":WAVeform:DATA?") by comparing each node's leading characters
+   */
+  private static boolean is (String header, String shortForm) {
+    String[] hNodes = header.replace("?", "").split(":");
+    String[] sNodes = shortForm.replace("?", "").split(":");
+    if (hNodes.length != sNodes.length) {
+      return false;
+    }
+    for (int ii = 0; ii < hNodes.length; ii++) {
+      if (!hNodes[ii].startsWith(sNodes[ii])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void command (String header, String arg) {
+    if (is(header, ":WAV:MODE")) {
+      waveMode = arg.toUpperCase();
+    } else if (is(header, ":WAV:STAR")) {
+      waveStart = Long.parseLong(arg);
+    } else if (is(header, ":WAV:STOP")) {
+      waveStop = Long.parseLong(arg);
+    } else if (is(header, "*CLS")) {
+      synchronized (this) {
+        esr = 0;
+      }
+    } else if (is(header, "*ESE")) {
+      synchronized (this) {
+        ese = Integer.parseInt(arg);
+      }
+    } else if (is(header, "*SRE")) {
+      synchronized (this) {
+        sre = Integer.parseInt(arg) & ~0x40;
+      }
+    } else if (is(header, "*OPC")) {
+      Thread ops = new Thread(() -> {
+        try {
+          Thread.sleep(opcMillis);
+        } catch (InterruptedException ex) {
+          return;
+        }
+        setEvent(0x01);
+      }, "SimRigol operations");
+      ops.setDaemon(true);
+      ops.start();
+    }
+    // Other commands (:STOP, :FUNC:VOLT:DC, etc.) are accepted and ignored
+  }
+
+  private void query (String header, String arg) {
+    if (is(header, "*IDN")) {
+      text(idn);
+    } else if (is(header, "*OPC")) {
+      try {
+        Thread.sleep(opcMillis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      text("1");
+    } else if (is(header, "*ESR")) {
+      synchronized (this) {
+        text(Integer.toString(esr));
+        esr = 0;
+      }
+    } else if (is(header, "*STB")) {
+      synchronized (this) {
+        text(Integer.toString(statusByte()));
+      }
+    } else if (is(header, "*ESE")) {
+      synchronized (this) {
+        text(Integer.toString(ese));
+      }
+    } else if (is(header, "*SRE")) {
+      synchronized (this) {
+        text(Integer.toString(sre));
+      }
+    } else if (is(header, ":ACQ:MDEP")) {
+      text(Integer.toString(depth));
+    } else if (is(header, ":WAV:PRE")) {
+      boolean raw = waveMode.startsWith("RAW");
+      text("0,0," + (raw ? depth : 600) + ",1,1.000000e-09,-1.200000e-05,0,4.000000e-02,0.000000e+00,127");
+    } else if (is(header, ":WAV:DATA")) {
+      if (waveMode.startsWith("RAW")) {
+        long first = Math.max(1, waveStart);
+        long last = Math.min(depth, waveStop);
+        block(wave(first - 1, (int) Math.max(0, last - first + 1)));
+      } else {
+        block(wave(0, 600));
+      }
+    } else if (is(header, ":DISP:DATA") || is(header, ":HCOP:SDUM:DATA")) {
+      block(bmp());
+    } else if (is(header, ":MEAS:ALL")) {
+      text(String.format("%.3f,%.3f,%.3f", 5 + random.nextGaussian() * 0.001, 0.1 + random.nextGaussian() * 0.0001,
+                         0.5 + random.nextGaussian() * 0.001));
+    } else {
+      text(String.format("%.6e", 1.234 + random.nextGaussian() * 0.0001));
+    }
+  }
+
+  private void text (String rsp) {
+    byte[] data = rsp.getBytes();
+    rspBuf.write(data, 0, data.length);
+  }
+
+  private void block (byte[] body) {
+    text(String.format("#9%09d", body.length));
+    rspBuf.write(body, 0, body.length);
+  }
+
+  /**
+   *  Synthetic sine wave with a little noise, one unsigned byte per point
+   */
+  private byte[] wave (long first, int count) {
+    byte[] data = new byte[count];
+    for (int ii = 0; ii < count; ii++) {
+      long idx = first + ii;
+      double val = 128 + 100 * Math.sin(2 * Math.PI * (idx % 1000) / 1000.0) + ((idx * 7919) % 5) - 2;
+      data[ii] = (byte) val;
+    }
+    return data;
+  }
+
+  /**
+   *  Synthetic 24 bit BMP with a gradient background and a bar that moves a little on each capture
+   */
+  private byte[] bmp () {
+    int rowSize = (bmpWidth * 3 + 3) & ~0x03;
+    int size = 54 + rowSize * bmpHeight;
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.put((byte) 'B').put((byte) 'M');
+    putInt(buf, size);
+    putInt(buf, 0);
+    putInt(buf, 54);                  // Offset to pixel data
+    putInt(buf, 40);                  // BITMAPINFOHEADER size
+    putInt(buf, bmpWidth);
+    putInt(buf, bmpHeight);
+    buf.put((byte) 1).put((byte) 0);  // Planes
+    buf.put((byte) 24).put((byte) 0); // Bits per pixel
+    putInt(buf, 0);                   // BI_RGB (uncompressed)
+    putInt(buf, rowSize * bmpHeight);
+    putInt(buf, 2835);
+    putInt(buf, 2835);
+    putInt(buf, 0);
+    putInt(buf, 0);
+    int bar = (frame++ * 8) % bmpWidth;
+    for (int yy = 0; yy < bmpHeight; yy++) {
+      for (int xx = 0; xx < bmpWidth; xx++) {
+        boolean inBar = xx >= bar && xx < bar + 16;
+        buf.put((byte) (inBar ? 255 : xx * 255 / bmpWidth));   // Blue
+        buf.put((byte) (inBar ? 255 : yy * 255 / bmpHeight));  // Green
+        buf.put((byte) (inBar ? 0 : 64));                      // Red
+      }
+      for (int ii = bmpWidth * 3; ii < rowSize; ii++) {
+        buf.put((byte) 0);
+      }
+    }
+    return buf.array();
+  }
+
+  private static int getInt (ByteBuffer buf, int idx) {
+    return (buf.get(idx) & 0xFF) | (buf.get(idx + 1) & 0xFF) << 8 | (buf.get(idx + 2) & 0xFF) << 16 | (buf.get(idx + 3) & 0xFF) << 24;
+  }
+
+  private static void putInt (ByteBuffer buf, int val) {
+    buf.put((byte) val).put((byte) (val >> 8)).put((byte) (val >> 16)).put((byte) (val >> 24));
+  }
+}
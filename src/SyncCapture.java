@@ -0,0 +1,277 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ *  Coordinated capture from several instruments at once, such as a DP832 rail, a DM3058 reading and a
+ *  DS4024 measurement.  Each instrument is driven from its own DeviceScheduler worker, and in each round the
+ *  workers meet at a barrier and then send their message (which can arm or trigger the instrument before
+ *  its query, such as ":TFOR;:MEAS:VPP? CHAN1") at the same moment, so the instruments are read in
+ *  parallel rather than one after another.  The host's monotonic clock (System.nanoTime()) is read just
+ *  before each message is sent and just after its response arrives, and each sample is stamped with the
+ *  midpoint of the two.  As every worker has to finish a round before any can start the next, each round
+ *  is complete, and merged into one Round holding a sample from every instrument, before the next begins.
+ *  The skew (spread of the send times within a round) and the throughput achieved are recorded.
+ */
+
+class SyncCapture {
+  private static final int          BARRIER_TIMEOUT = 30;     // Seconds
+  private final DeviceScheduler     scheduler;
+  private final Sessions            sessions;
+  private final List<Channel>       channels = new ArrayList<>();
+  private final LatencyHistogram    skew = new LatencyHistogram();
+  private long                      start, elapsed, rounds, samples, bytes;
+  private volatile boolean          aborted;
+
+  /**
+   *  Receives each round, in order, on the worker thread of the last instrument to respond
+   */
+  interface Listener {
+    void round (Round round);
+  }
+
+  /**
+   *  Opens and closes the session for each instrument, on the instrument's worker thread
+   */
+  interface Sessions {
+    USBTMC acquire (String name);
+
+    /**
+     *  @param failed true if the capture failed, so the session may need to be recovered or reset
+     */
+    void release (String name, USBTMC tmc, boolean failed);
+  }
+
+  private static class Channel {
+    final String    name, msg;
+    final Response  response = new Response();
+
+    Channel (String name, String msg) {
+      this.name = name;
+      this.msg = msg.endsWith("\n") ? msg : msg + '\n';
+    }
+  }
+
+  /**
+   *  Reading from one instrument
+   */
+  static class Sample {
+    final String    device;
+    final long      sent, received;           // ns since the capture started
+    final double[]  values;                   // Numbers in the response, if any
+    final String    text;                     // Response, if it was not a number or list of numbers
+
+    Sample (String device, long sent, long received, double[] values, String text) {
+      this.device = device;
+      this.sent = sent;
+      this.received = received;
+      this.values = values;
+      this.text = text;
+    }
+
+    /**
+     *  @return time of the reading, in ns since the capture started
+     */
+    long getTime () {
+      return (sent + received) / 2;
+    }
+
+    public String toString () {
+      if (text != null) {
+        return device + ": " + text;
+      }
+      StringBuilder buf = new StringBuilder(device).append(": ");
+      for (int ii = 0; ii < values.length; ii++) {
+        buf.append(ii > 0 ? ", " : "").append(Response.format(values[ii]));
+      }
+      return buf.toString();
+    }
+  }
+
+  /**
+   *  One sample from every instrument, in the order they were added
+   */
+  static class Round {
+    final int       index;
+    final Sample[]  samples;
+
+    Round (int index, int size) {
+      this.index = index;
+      samples = new Sample[size];
+    }
+
+    /**
+     *  @return mean time of the samples, in ns since the capture started
+     */
+    long getTime () {
+      long sum = 0;
+      for (Sample sample : samples) {
+        sum += sample.getTime();
+      }
+      return sum / samples.length;
+    }
+
+    /**
+     *  @return difference, in ns, between the first and last send times
+     */
+    long getSkew () {
+      long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+      for (Sample sample : samples) {
+        min = Math.min(min, sample.sent);
+        max = Math.max(max, sample.sent);
+      }
+      return max - min;
+    }
+
+    public String toString () {
+      StringBuilder buf = new StringBuilder(String.format("%d  %.3f ms", index, getTime() / 1e6));
+      for (Sample sample : samples) {
+        buf.append("  ").append(sample);
+      }
+      return buf.append(String.format("  (skew %d us)", getSkew() / 1000)).toString();
+    }
+  }
+
+  SyncCapture (DeviceScheduler scheduler, Sessions sessions) {
+    this.scheduler = scheduler;
+    this.sessions = sessions;
+  }
+
+  /**
+   *  Adds an instrument, which is driven from the DeviceScheduler worker for name
+   *  @param msg program message sent each round, ending with the query that returns the reading
+   */
+  void add (String name, String msg) {
+    if (msg.indexOf('?') < 0) {
+      throw new IllegalArgumentException("Not a query: " + msg);
+    }
+    channels.add(new Channel(name, msg));
+  }
+
+  /**
+   *  Captures count rounds, passing each to listener as it completes
+   */
+  void run (int count, Listener listener) throws Exception {
+    int size = channels.size();
+    Round[] current = new Round[1];
+    int[] next = {0};
+    CyclicBarrier barrier = new CyclicBarrier(size, () -> current[0] = new Round(next[0]++, size));
+    skew.reset();
+    rounds = samples = bytes = 0;
+    aborted = false;
+    start = System.nanoTime();
+    List<Future<Object>> futures = new ArrayList<>();
+    for (int ii = 0; ii < size; ii++) {
+      Channel chan = channels.get(ii);
+      int slot = ii;
+      futures.add(scheduler.submit(chan.name, () -> {
+        USBTMC tmc = null;
+        try {
+          tmc = sessions.acquire(chan.name);
+          capture(chan, tmc, slot, count, barrier, current, listener);
+        } catch (Exception ex) {
+          abort(barrier);
+          if (tmc != null) {
+            sessions.release(chan.name, tmc, true);
+          }
+          throw ex;
+        }
+        sessions.release(chan.name, tmc, false);
+        return null;
+      }));
+    }
+    Exception error = null;
+    for (Future<Object> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException ex) {
+        // Keep the cause, rather than the BrokenBarrierException the other workers see
+        if (error == null || error instanceof BrokenBarrierException) {
+          error = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+      }
+    }
+    elapsed = System.nanoTime() - start;
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   *  Stops the capture after a worker fails by breaking the barrier, so the other workers' waits (including
+   *  those of any that have yet to reach it) fail at once rather than after BARRIER_TIMEOUT.  A barrier is
+   *  broken by a wait that times out, but if this worker is the last to arrive its wait trips the barrier
+   *  instead, so it waits again
+   */
+  private void abort (CyclicBarrier barrier) {
+    aborted = true;
+    while (barrier.getParties() > 1 && !barrier.isBroken()) {
+      try {
+        barrier.await(0, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (BrokenBarrierException | TimeoutException ex) {
+        // Broken, as intended
+      }
+    }
+  }
+
+  /**
+   *  Runs on chan's worker, taking a sample from it in each of count rounds
+   */
+  private void capture (Channel chan, USBTMC tmc, int slot, int count, CyclicBarrier barrier, Round[] current,
+                        Listener listener) throws Exception {
+    for (int jj = 0; jj < count && !aborted; jj++) {
+      barrier.await(BARRIER_TIMEOUT, TimeUnit.SECONDS);
+      if (aborted) {
+        break;
+      }
+      Round round = current[0];
+      long sent = System.nanoTime() - start;
+      ByteBuffer rsp = tmc.query(chan.msg);
+      long received = System.nanoTime() - start;
+      int type = chan.response.parse(rsp);
+      boolean numbers = chan.response.getCount() > 0;
+      double[] values = new double[chan.response.getCount()];
+      for (int kk = 0; kk < values.length; kk++) {
+        values[kk] = chan.response.get(kk);
+      }
+      Sample sample = new Sample(chan.name, sent, received, values, numbers ? null :
+                                 type == Response.BLOCK ? rsp.remaining() + " byte block" : chan.response.getText());
+      if (complete(round, slot, sample, rsp.remaining()) && listener != null) {
+        listener.round(round);
+      }
+    }
+  }
+
+  /**
+   *  Stores sample in round
+   *  @return true if it was the last sample needed to complete round
+   */
+  private synchronized boolean complete (Round round, int slot, Sample sample, int length) {
+    round.samples[slot] = sample;
+    samples++;
+    bytes += length;
+    for (Sample item : round.samples) {
+      if (item == null) {
+        return false;
+      }
+    }
+    rounds++;
+    skew.record(round.getSkew());
+    return true;
+  }
+
+  /**
+   *  @return rounds and samples per second, bytes received and the distribution of the skew
+   */
+  synchronized String getSummary () {
+    double seconds = Math.max(1, elapsed) / 1e9;
+    return String.format("%d rounds from %d devices in %.2f s: %.1f rounds/s, %.1f samples/s, %.1f KB/s%n" +
+                         "  skew: mean %.0f us, p50 %d us, p99 %d us, max %d us", rounds, channels.size(), seconds,
+                         rounds / seconds, samples / seconds, bytes / 1e3 / seconds, skew.getMean(),
+                         skew.getPercentile(50), skew.getPercentile(99), skew.getMax());
+  }
+}
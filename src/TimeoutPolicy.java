@@ -0,0 +1,128 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Learns how long a device takes to respond to each class of query (the header of the query, such as
+ *  ":MEAS:VOLT:DC?") and chooses the timeout for the first read of each response from those latencies
+ *  rather than using one fixed value.  Until a class has been seen a few times DEFAULT is used.  After a
+ *  timeout the class's timeout is doubled (up to MAX) for the next query, and it decays back as responses
+ *  arrive in time.  One policy is kept per device, for as long as the program runs.
+ */
+
+class TimeoutPolicy {
+  static final int                DEFAULT = 500;          // ms
+  static final int                MIN = 250, MAX = 10000;
+  private static final int        MIN_SAMPLES = 8;
+  private static final int        MAX_CLASSES = 64;
+  private final Map<String,Entry> classes = new LinkedHashMap<>();
+  private long                    timeouts;
+
+  private static class Entry {
+    final LatencyHistogram  latency = new LatencyHistogram();
+    int                     floor;                  // Raised after a timeout
+    int                     size;                   // Largest first message seen, in bytes
+    long                    timeouts;
+  }
+
+  private Entry entry (String cls) {
+    Entry entry = classes.get(cls);
+    if (entry == null) {
+      if (classes.size() >= MAX_CLASSES) {
+        cls = "other";
+        entry = classes.get(cls);
+      }
+      if (entry == null) {
+        classes.put(cls, entry = new Entry());
+      }
+    }
+    return entry;
+  }
+
+  /**
+   *  @return class of cmd: the header of its first query, or null if it's not a query
+   */
+  static String classify (String cmd) {
+    int query = cmd.indexOf('?');
+    if (query < 0) {
+      return null;
+    }
+    int start = cmd.lastIndexOf(';', query) + 1;
+    while (start < query && Character.isWhitespace(cmd.charAt(start))) {
+      start++;
+    }
+    return cmd.substring(start, query + 1).toUpperCase();
+  }
+
+  /**
+   *  @return timeout, in ms, to use for the first read of the response to a query of class cls
+   */
+  synchronized int getTimeout (String cls) {
+    if (cls == null) {
+      return DEFAULT;
+    }
+    Entry entry = entry(cls);
+    int timeout = DEFAULT;
+    if (entry.latency.getCount() >= MIN_SAMPLES) {
+      // Twice the 99th percentile, plus a margin for scheduling jitter
+      timeout = (int) Math.max(MIN, Math.min(MAX, entry.latency.getPercentile(99) * 2 / 1000 + 50));
+    }
+    return Math.max(timeout, entry.floor);
+  }
+
+  /**
+   *  Records the time taken for the first part of the response to a query of class cls to arrive
+   */
+  synchronized void record (String cls, long nanos) {
+    if (cls != null) {
+      Entry entry = entry(cls);
+      entry.latency.record(nanos);
+      entry.floor /= 2;
+    }
+  }
+
+  /**
+   *  Records the size of the first message of the response to a query of class cls
+   */
+  synchronized void recordSize (String cls, int bytes) {
+    if (cls != null) {
+      Entry entry = entry(cls);
+      entry.size = Math.max(entry.size, bytes);
+    }
+  }
+
+  /**
+   *  @return largest first message seen in response to a query of class cls, or 0 if none yet
+   */
+  synchronized int getSize (String cls) {
+    return cls != null && classes.containsKey(cls) ? classes.get(cls).size : 0;
+  }
+
+  /**
+   *  Notes that a query of class cls timed out, so the next one waits twice as long
+   */
+  synchronized void timedOut (String cls) {
+    timeouts++;
+    if (cls != null) {
+      Entry entry = entry(cls);
+      entry.timeouts++;
+      entry.floor = Math.min(MAX, Math.max(DEFAULT, getTimeout(cls)) * 2);
+    }
+  }
+
+  synchronized long getTimeouts () {
+    return timeouts;
+  }
+
+  /**
+   *  @return one line per class with its latency distribution and current timeout
+   */
+  synchronized String getReport () {
+    StringBuilder buf = new StringBuilder();
+    for (Map.Entry<String,Entry> item : classes.entrySet()) {
+      Entry entry = item.getValue();
+      buf.append(String.format("    %-20s %s, timeout %d ms%s%n", item.getKey(), entry.latency, getTimeout(item.getKey()),
+                               entry.timeouts > 0 ? ", " + entry.timeouts + " timeouts" : ""));
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.function.IntConsumer;
+
+/**
+ *  Bulk transfer interface that USBTMC uses to talk to a device.  Implemented by USBIO, for real devices,
+ *  and by SimRigol, a simulated device that lets the protocol code be exercised and timed without hardware.
+ */
+
+interface Transport {
+  /**
+   *  @return max packet size of the bulk endpoints
+   */
+  int getMaxPkt ();
+
+  /**
+   *  Sends the bytes between data's position and limit as one bulk transfer
+   */
+  void send (ByteBuffer data);
+
+  /**
+   *  Reads up to length bytes (rounded up to a multiple of getMaxPkt()) into dst, starting at its position,
+   *  which is then advanced by the number of bytes received.  Ends early if the device sends a short packet.
+   *  @return number of bytes received
+   */
+  int receive (ByteBuffer dst, int length);
+
+  /**
+   *  Same as receive(), but may use several queued asynchronous transfers
+   */
+  default int receiveAsync (ByteBuffer dst, int length) {
+    return receive(dst, length);
+  }
+
+  /**
+   *  Sets the timeout (in ms) for the next reads, before any allowance for their length
+   */
+  default void setTimeout (int millis) {}
+
+  /**
+   *  Sets how many bytes the next reads are expected to return, which scales their timeout in place of
+   *  their length (-1, the default, scales by the length of each read)
+   */
+  default void setExpected (int bytes) {}
+
+  /**
+   *  @return timeout (in ms) last set with setTimeout()
+   */
+  default int getTimeout () {
+    return TimeoutPolicy.DEFAULT;
+  }
+
+  /**
+   *  Aborts the bulk-IN transfer of the message with bTag tag (USBTMC INITIATE_ABORT_BULK_IN) and discards
+   *  any data the device has queued for it
+   *  @return true if the device confirmed the abort (or had no transfer in progress)
+   */
+  default boolean abortIn (byte tag) {
+    return false;
+  }
+
+  /**
+   *  Clears the device's input and output buffers (USBTMC INITIATE_CLEAR) and the bulk-OUT endpoint's halt
+   *  @return true if the device confirmed the clear
+   */
+  default boolean clear () {
+    return false;
+  }
+
+  /**
+   *  Reads the device's status byte without going through the message queue (USB488 READ_STATUS_BYTE)
+   *  @return status byte, or -1 if the device doesn't support the request
+   */
+  default int readStatusByte () {
+    return -1;
+  }
+
+  /**
+   *  Sets the listener that is called, on a background thread, with the status byte each time the device
+   *  requests service (a USB488 SRQ notification on the interrupt-IN endpoint)
+   *  @return true if the device has an interrupt-IN endpoint, so service requests will be received
+   */
+  default boolean setServiceListener (IntConsumer listener) {
+    return false;
+  }
+
+  /**
+   *  Sets where packet, byte, retry and timeout counts are recorded
+   */
+  default void setMetrics (Metrics.Device metrics) {}
+
+  boolean isAlive ();
+
+  void resetDevice ();
+
+  void close ();
+}
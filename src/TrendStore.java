@@ -0,0 +1,636 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ *  Long running store of timestamped scalar readings (such as supply voltages and currents logged for
+ *  days), kept in a directory with a set of files for each named series.  Readings are compressed as they
+ *  are appended, in the style of Facebook's Gorilla: within each block the timestamps (ms since the epoch)
+ *  are stored as the change in the interval between readings (which is usually 0, so costs 1 bit) and
+ *  each value as the XOR of its bits with the previous value's (which for a slowly changing reading has
+ *  few significant bits).  Blocks are written straight into memory-mapped segment files of SEGMENT_SIZE
+ *  bytes, so nothing is held on the heap and nothing is allocated per reading.  Alongside the raw readings
+ *  the min, max and mean over each second, minute and hour (RESOLUTIONS) are kept in rollup files, so a
+ *  query over a week reads a few thousand rollup records rather than decoding every reading.
+ *
+ *  Segment files (name.00000.seg, ...) hold blocks, each starting on a multiple of 8 bytes:
+ *
+ *    Block header  BLOCK_MAGIC, reading count (int), length of the bit stream in bits (int), reserved
+ *                  (int), time of the first reading (long) and bits of its value (long)
+ *    Bit stream    Each later reading: its delta of delta time (0 = '0', then '10', '110' and '1110' with
+ *                  7, 9 and 12 bit values, else '1111' and 64 bits), then its value XOR the previous
+ *                  value (0 = '0', '10' and the meaningful bits if they fit in the previous reading's
+ *                  window, else '11', 6 bits of leading zeros, 6 bits of length - 1 and the bits)
+ *
+ *  Rollup files (name.1s.roll, name.1m.roll and name.1h.roll) hold ROLLUP byte records of the start time of
+ *  the interval (long), min, max and sum of the values (doubles) and their count (long).  The record for
+ *  the current interval is written when it ends, so when a series is opened the last record of each rollup
+ *  is rebuilt from the readings, which also recovers the rollups after a crash.  All values little endian.
+ */
+
+class TrendStore implements Closeable {
+  static final long[]         RESOLUTIONS = {1000, 60 * 1000, 60 * 60 * 1000};   // Rollup intervals, in ms
+  private static final String[] LABELS = {"1s", "1m", "1h"};
+  private static final int    SEGMENT_SIZE = 4 * 1024 * 1024;
+  private static final int    BLOCK_MAGIC = 0x4B4C4254;     // "TBLK"
+  private static final int    BLOCK_HDR = 32;
+  private static final int    BLOCK_POINTS = 8192;
+  private static final int    MAX_POINT = 24;               // Bytes needed by a reading, at worst
+  private static final int    ROLLUP = 40;
+  private final File          dir;
+  private final Map<String,Series> series = new TreeMap<>();
+
+  /**
+   *  Readings between two times, merged into buckets of equal width
+   */
+  static class Trend {
+    final long    from, width;              // ms
+    final long[]  times, counts;            // Start time of each bucket and number of readings in it
+    final double[] min, max, mean;
+    int           size;
+    final String  source;                   // "raw" or the resolution of the rollup used
+
+    Trend (long from, long width, int buckets, String source) {
+      this.from = from;
+      this.width = width;
+      this.source = source;
+      times = new long[buckets];
+      counts = new long[buckets];
+      min = new double[buckets];
+      max = new double[buckets];
+      mean = new double[buckets];           // Holds the sum until finish()
+    }
+
+    private void add (long time, double lo, double hi, double sum, long count) {
+      int idx = (int) ((time - from) / width);
+      if (idx < 0 || idx >= times.length) {
+        return;
+      }
+      if (counts[idx] == 0) {
+        min[idx] = lo;
+        max[idx] = hi;
+      } else {
+        min[idx] = Math.min(min[idx], lo);
+        max[idx] = Math.max(max[idx], hi);
+      }
+      mean[idx] += sum;
+      counts[idx] += count;
+    }
+
+    /**
+     *  Drops empty buckets and turns sums into means
+     */
+    private void finish () {
+      size = 0;
+      for (int ii = 0; ii < times.length; ii++) {
+        if (counts[ii] > 0) {
+          times[size] = from + ii * width;
+          counts[size] = counts[ii];
+          min[size] = min[ii];
+          max[size] = max[ii];
+          mean[size] = mean[ii] / counts[ii];
+          size++;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Reads the readings of one block in order
+   */
+  private static class Cursor {
+    private MappedByteBuffer  seg;
+    private int               base, left;
+    private long              bitPos, time, delta, bits;
+    private int               lead, trail;
+
+    /**
+     *  Positions the cursor before the first reading of the block at offset off in seg
+     */
+    void open (MappedByteBuffer seg, int off) {
+      this.seg = seg;
+      base = off + BLOCK_HDR;
+      left = seg.getInt(off + 4);
+      bitPos = -1;
+      time = seg.getLong(off + 16);
+      bits = seg.getLong(off + 24);
+    }
+
+    private long read (int count) {
+      long value = 0;
+      while (count > 0) {
+        int cur = seg.get(base + (int) (bitPos >>> 3)) & 0xFF;
+        int free = 8 - (int) (bitPos & 7);
+        int take = Math.min(free, count);
+        value = value << take | (cur >>> (free - take) & ((1 << take) - 1));
+        bitPos += take;
+        count -= take;
+      }
+      return value;
+    }
+
+    private long readSigned (int count) {
+      return read(count) << (64 - count) >> (64 - count);
+    }
+
+    /**
+     *  Moves to the next reading
+     *  @return false if there are no more readings in the block
+     */
+    boolean next () {
+      if (left <= 0) {
+        return false;
+      }
+      left--;
+      if (bitPos < 0) {
+        bitPos = 0;                 // First reading is in the header
+        delta = 0;
+        return true;
+      }
+      long dod;
+      if (read(1) == 0) {
+        dod = 0;
+      } else if (read(1) == 0) {
+        dod = readSigned(7);
+      } else if (read(1) == 0) {
+        dod = readSigned(9);
+      } else if (read(1) == 0) {
+        dod = readSigned(12);
+      } else {
+        dod = read(64);
+      }
+      delta += dod;
+      time += delta;
+      if (read(1) != 0) {
+        if (read(1) != 0) {
+          lead = (int) read(6);
+          int len = (int) read(6) + 1;
+          trail = 64 - lead - len;
+        }
+        bits ^= read(64 - lead - trail) << trail;
+      }
+      return true;
+    }
+
+    long getTime () {
+      return time;
+    }
+
+    double getValue () {
+      return Double.longBitsToDouble(bits);
+    }
+  }
+
+  /**
+   *  Min, max, sum and count of the readings in each interval of one resolution
+   */
+  private static class Rollup {
+    final long                res;
+    final File                file;
+    private MappedByteBuffer  map;
+    private int               records;
+    long                      start = Long.MIN_VALUE;       // Current interval, which is not yet written
+    double                    min, max, sum;
+    long                      count;
+
+    Rollup (long res, File file) throws IOException {
+      this.res = res;
+      this.file = file;
+      map(Math.max(file.length(), 64L * ROLLUP));
+      // Records are written in order, so the written ones are followed only by empty (zero count) ones
+      int lo = 0, hi = map.capacity() / ROLLUP;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (map.getLong(mid * ROLLUP + 32) > 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      records = lo;
+    }
+
+    private void map (long size) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE)) {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    void add (long time, double value) {
+      long bucket = time - Math.floorMod(time, res);
+      if (bucket != start) {
+        if (count > 0) {
+          write();
+        }
+        start = bucket;
+        min = max = sum = value;
+        count = 1;
+      } else {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+      }
+    }
+
+    private void write () {
+      if ((records + 1) * (long) ROLLUP > map.capacity()) {
+        try {
+          map(map.capacity() * 2L);
+        } catch (IOException ex) {
+          throw new IllegalStateException("Unable to grow " + file, ex);
+        }
+      }
+      int pos = records * ROLLUP;
+      map.putLong(pos, start).putDouble(pos + 8, min).putDouble(pos + 16, max).putDouble(pos + 24, sum);
+      map.putLong(pos + 32, count);
+      records++;
+    }
+
+    /**
+     *  Removes the last record and makes it the current interval again, with no readings
+     *  @return start time of the interval, or Long.MIN_VALUE if there are no records
+     */
+    long reopen () {
+      if (records == 0) {
+        return Long.MIN_VALUE;
+      }
+      int pos = --records * ROLLUP;
+      long time = map.getLong(pos);
+      for (int ii = 0; ii < ROLLUP; ii += 8) {
+        map.putLong(pos + ii, 0);
+      }
+      count = 0;
+      start = Long.MIN_VALUE;
+      return time;
+    }
+
+    /**
+     *  Adds the records (and the current interval) between from and to to trend
+     */
+    void query (long from, long to, Trend trend) {
+      int lo = 0, hi = records;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (map.getLong(mid * ROLLUP) < from) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      for (int ii = lo; ii < records; ii++) {
+        int pos = ii * ROLLUP;
+        long time = map.getLong(pos);
+        if (time >= to) {
+          break;
+        }
+        trend.add(time, map.getDouble(pos + 8), map.getDouble(pos + 16), map.getDouble(pos + 24), map.getLong(pos + 32));
+      }
+      if (count > 0 && start >= from && start < to) {
+        trend.add(start, min, max, sum, count);
+      }
+    }
+
+    void force () {
+      map.force();
+    }
+  }
+
+  /**
+   *  One named series of readings.  Readings must be appended in time order (a reading older than the last
+   *  one is given the last one's time)
+   */
+  class Series {
+    final String                      name;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Rollup[]            rollups = new Rollup[RESOLUTIONS.length];
+    private final Cursor              cursor = new Cursor();
+    private long[]                    blockTimes = new long[64];       // Block index: time of first reading,
+    private int[]                     blockSegs = new int[64];         // segment and offset of each block
+    private int[]                     blockOffs = new int[64];
+    private int                       blocks;
+    // Block being written
+    private MappedByteBuffer          seg;
+    private int                       blockOff, count, lead = -1, trail;
+    private long                      bitPos, lastTime = Long.MIN_VALUE, lastDelta, lastBits;
+    private long                      readings;
+
+    Series (String name) throws IOException {
+      this.name = name;
+      for (int ii = 0; new File(dir, segmentName(ii)).exists(); ii++) {
+        MappedByteBuffer buf = mapSegment(ii);
+        int off = 0;
+        while (off + BLOCK_HDR <= SEGMENT_SIZE && buf.getInt(off) == BLOCK_MAGIC) {
+          addBlock(buf.getLong(off + 16), ii, off);
+          readings += buf.getInt(off + 4);
+          seg = buf;
+          blockOff = off;
+          bitPos = buf.getInt(off + 8);
+          off = nextBlock();
+        }
+      }
+      if (seg != null) {
+        // Clear anything after the last complete block, and start a new block with the next reading
+        for (int ii = nextBlock(); ii < SEGMENT_SIZE; ii++) {
+          seg.put(ii, (byte) 0);
+        }
+        cursor.open(seg, blockOff);
+        while (cursor.next()) {
+          lastTime = cursor.getTime();
+        }
+        count = BLOCK_POINTS;
+      }
+      for (int ii = 0; ii < rollups.length; ii++) {
+        rollups[ii] = new Rollup(RESOLUTIONS[ii], new File(dir, name + "." + LABELS[ii] + ".roll"));
+        long from = rollups[ii].reopen();
+        replay(rollups[ii], from);
+      }
+    }
+
+    private String segmentName (int idx) {
+      return String.format("%s.%05d.seg", name, idx);
+    }
+
+    private MappedByteBuffer mapSegment (int idx) throws IOException {
+      try (FileChannel channel = FileChannel.open(new File(dir, segmentName(idx)).toPath(), StandardOpenOption.CREATE,
+                                                  StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        segments.add(buf);
+        return buf;
+      }
+    }
+
+    private void addBlock (long time, int segIdx, int off) {
+      if (blocks == blockTimes.length) {
+        blockTimes = Arrays.copyOf(blockTimes, blocks * 2);
+        blockSegs = Arrays.copyOf(blockSegs, blocks * 2);
+        blockOffs = Arrays.copyOf(blockOffs, blocks * 2);
+      }
+      blockTimes[blocks] = time;
+      blockSegs[blocks] = segIdx;
+      blockOffs[blocks++] = off;
+    }
+
+    /**
+     *  @return offset, in the current segment, just after the current block
+     */
+    private int nextBlock () {
+      return (blockOff + BLOCK_HDR + (int) ((bitPos + 7) >>> 3) + 7) & ~7;
+    }
+
+    /**
+     *  Adds the readings from time from onwards to rollup or, if from is Long.MIN_VALUE (the rollup has no
+     *  records, as every reading is still in its current interval), all the readings
+     */
+    private void replay (Rollup rollup, long from) {
+      if (blocks == 0) {
+        return;
+      }
+      from = Math.max(from, blockTimes[0]);
+      for (int ii = findBlock(from); ii < blocks; ii++) {
+        cursor.open(segments.get(blockSegs[ii]), blockOffs[ii]);
+        while (cursor.next()) {
+          if (cursor.getTime() >= from) {
+            rollup.add(cursor.getTime(), cursor.getValue());
+          }
+        }
+      }
+    }
+
+    /**
+     *  @return index of the block that holds the readings at time, or the first block
+     */
+    private int findBlock (long time) {
+      int lo = 0, hi = blocks;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (blockTimes[mid] <= time) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return Math.max(0, lo - 1);
+    }
+
+    private void write (long value, int bits) {
+      while (bits > 0) {
+        int idx = blockOff + BLOCK_HDR + (int) (bitPos >>> 3);
+        int free = 8 - (int) (bitPos & 7);
+        int take = Math.min(free, bits);
+        int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+        seg.put(idx, (byte) (seg.get(idx) | chunk << (free - take)));
+        bitPos += take;
+        bits -= take;
+      }
+    }
+
+    /**
+     *  Adds a reading.  Nothing is allocated, except when a new segment file is started
+     *  @param time ms since the epoch
+     */
+    synchronized void append (long time, double value) {
+      time = Math.max(time, lastTime);
+      long bits = Double.doubleToRawLongBits(value);
+      if (seg == null || count >= BLOCK_POINTS || blockOff + BLOCK_HDR + (bitPos >>> 3) + MAX_POINT > SEGMENT_SIZE) {
+        startBlock(time, bits);
+      } else {
+        long delta = time - lastTime;
+        long dod = delta - lastDelta;
+        lastDelta = delta;
+        if (dod == 0) {
+          write(0, 1);
+        } else if (dod >= -64 && dod < 64) {
+          write(0b10, 2);
+          write(dod, 7);
+        } else if (dod >= -256 && dod < 256) {
+          write(0b110, 3);
+          write(dod, 9);
+        } else if (dod >= -2048 && dod < 2048) {
+          write(0b1110, 4);
+          write(dod, 12);
+        } else {
+          write(0b1111, 4);
+          write(dod, 64);
+        }
+        long xor = bits ^ lastBits;
+        lastBits = bits;
+        if (xor == 0) {
+          write(0, 1);
+        } else {
+          int zeros = Long.numberOfLeadingZeros(xor);
+          int tail = Long.numberOfTrailingZeros(xor);
+          if (lead >= 0 && zeros >= lead && tail >= trail) {
+            write(0b10, 2);
+            write(xor >>> trail, 64 - lead - trail);
+          } else {
+            write(0b11, 2);
+            write(zeros, 6);
+            write(64 - zeros - tail - 1, 6);
+            write(xor >>> tail, 64 - zeros - tail);
+            lead = zeros;
+            trail = tail;
+          }
+        }
+        seg.putInt(blockOff + 4, ++count);
+        seg.putInt(blockOff + 8, (int) bitPos);
+      }
+      lastTime = time;
+      readings++;
+      for (Rollup rollup : rollups) {
+        rollup.add(time, value);
+      }
+    }
+
+    private void startBlock (long time, long bits) {
+      int off = seg != null ? nextBlock() : SEGMENT_SIZE;
+      if (off + BLOCK_HDR + MAX_POINT > SEGMENT_SIZE) {
+        try {
+          seg = mapSegment(segments.size());
+        } catch (IOException ex) {
+          throw new IllegalStateException("Unable to create segment " + segmentName(segments.size()), ex);
+        }
+        off = 0;
+      }
+      blockOff = off;
+      seg.putInt(off + 4, 1).putInt(off + 8, 0).putInt(off + 12, 0).putLong(off + 16, time).putLong(off + 24, bits);
+      seg.putInt(off, BLOCK_MAGIC);
+      addBlock(time, segments.size() - 1, off);
+      count = 1;
+      bitPos = 0;
+      lastDelta = 0;
+      lastBits = bits;
+      lead = -1;
+    }
+
+    /**
+     *  Summarizes the readings from from to to (ms since the epoch) as at most maxPoints buckets, with the
+     *  min, max and mean of the readings in each.  These come from the coarsest rollup whose intervals fit
+     *  in a bucket or, if the buckets are narrower than a second, from the readings themselves
+     */
+    synchronized Trend query (long from, long to, int maxPoints) {
+      long width = Math.max(1, (to - from + maxPoints - 1) / maxPoints);
+      int level = -1;
+      for (int ii = 0; ii < RESOLUTIONS.length; ii++) {
+        if (RESOLUTIONS[ii] <= width) {
+          level = ii;
+          // Align the buckets with the rollup's intervals
+          width = (width + RESOLUTIONS[ii] - 1) / RESOLUTIONS[ii] * RESOLUTIONS[ii];
+        }
+      }
+      if (level >= 0) {
+        from -= Math.floorMod(from, RESOLUTIONS[level]);
+      }
+      Trend trend = new Trend(from, width, (int) ((to - from + width - 1) / width), level >= 0 ? LABELS[level] : "raw");
+      if (level >= 0) {
+        rollups[level].query(from, to, trend);
+      } else if (blocks > 0) {
+        for (int ii = findBlock(from); ii < blocks && blockTimes[ii] < to; ii++) {
+          cursor.open(segments.get(blockSegs[ii]), blockOffs[ii]);
+          while (cursor.next()) {
+            long time = cursor.getTime();
+            if (time >= from && time < to) {
+              double value = cursor.getValue();
+              trend.add(time, value, value, value, 1);
+            }
+          }
+        }
+      }
+      trend.finish();
+      return trend;
+    }
+
+    synchronized long getCount () {
+      return readings;
+    }
+
+    /**
+     *  @return time of the first reading, or Long.MIN_VALUE if there are none
+     */
+    synchronized long getFirstTime () {
+      return blocks > 0 ? blockTimes[0] : Long.MIN_VALUE;
+    }
+
+    synchronized long getLastTime () {
+      return lastTime;
+    }
+
+    /**
+     *  @return bytes used by the compressed readings
+     */
+    synchronized long getSize () {
+      return seg != null ? (segments.size() - 1L) * SEGMENT_SIZE + nextBlock() : 0;
+    }
+
+    private synchronized void force () {
+      for (MappedByteBuffer buf : segments) {
+        buf.force();
+      }
+      for (Rollup rollup : rollups) {
+        rollup.force();
+      }
+    }
+  }
+
+  /**
+   *  Opens the store in dir, creating the directory if needed
+   */
+  TrendStore (File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+  }
+
+  /**
+   *  @return the series called name (characters other than letters, digits, '.', '-' and '_' are replaced
+   *  with '_'), opening or creating it
+   */
+  synchronized Series series (String name) throws IOException {
+    name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+    Series item = series.get(name);
+    if (item == null) {
+      series.put(name, item = new Series(name));
+    }
+    return item;
+  }
+
+  /**
+   *  @return names of the series in the store
+   */
+  synchronized Set<String> getNames () {
+    Set<String> names = new TreeSet<>(series.keySet());
+    String[] files = dir.list();
+    for (String file : files != null ? files : new String[0]) {
+      if (file.endsWith(".00000.seg")) {
+        names.add(file.substring(0, file.length() - 10));
+      }
+    }
+    return names;
+  }
+
+  /**
+   *  Writes the readings and rollups of every open series to disk
+   */
+  synchronized void force () {
+    for (Series item : series.values()) {
+      item.force();
+    }
+  }
+
+  /**
+   *  Writes every series to disk.  The rollups' current intervals are left to be rebuilt when reopened
+   */
+  public synchronized void close () {
+    force();
+    series.clear();
+  }
+}
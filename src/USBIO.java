@@ -1,8 +1,11 @@
 import org.usb4java.*;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
 import static org.usb4java.LibUsb.*;
 
@@ -15,128 +18,446 @@ import static org.usb4java.LibUsb.*;
  *  http://libusb.sourceforge.net/api-1.0/
  */
 
-class USBIO {
+class USBIO implements Transport {
   private static final int  TIMEOUT = 500;
+  // USBTMC class specific requests and status values
+  private static final byte INITIATE_ABORT_BULK_IN = 3, CHECK_ABORT_BULK_IN_STATUS = 4;
+  private static final byte INITIATE_CLEAR = 5, CHECK_CLEAR_STATUS = 6;
+  private static final byte STATUS_SUCCESS = 0x01, STATUS_PENDING = 0x02, STATUS_FAILED = (byte) 0x80;
+  private static final byte READ_STATUS_BYTE = (byte) 128;      // USB488 subclass request
+  private static final int  SRQ = 0x81;                 // bNotify1 of a service request notification
+  private static final int  ASYNC_CHUNK = 64 * 1024;    // Size of each in-flight bulk-IN transfer
+  private static final int  ASYNC_DEPTH = 8;            // Number of bulk-IN transfers kept queued
   private DeviceHandle      handle;
-  private Context           context;
-  private byte              iFace, outEnd, inEnd;
+  private final DeviceRegistry registry;          // Owns the shared Context and runs its event loop
+  private byte              iFace, outEnd, inEnd, intEnd;
   short                     maxPkt;
-  private boolean           handleOpen, contextOpen, interfaceOpen;
+  String                    serial;
+  private boolean           handleOpen, interfaceOpen;
+  private IntBuffer         xferNum = IntBuffer.allocate(1);
+  private int               timeout = TIMEOUT;
+  private int               expected = -1;        // Bytes the next reads should return, or -1 if not known
+  private Metrics.Device    metrics = Metrics.NONE;
+  private Transfer[]        transfers;
+  private BlockingQueue<Transfer> completed;
+  private Thread            intThread;            // Reads the interrupt-IN endpoint
+  private volatile boolean  intRunning;
+  private volatile IntConsumer serviceListener;
+  private final BlockingQueue<Integer> statusReplies = new LinkedBlockingQueue<>();
+  private byte              statusTag = 1;
 
   USBIO (short vendorId, short productId) {
-    context = new Context();
-    int result = LibUsb.init(context);
-    contextOpen = true;
-    if (result < 0) {
-      throw new LibUsbException("Unable to initialize libusb", result);
-    }
-    DeviceList list = new DeviceList();
-    if ((result = LibUsb.getDeviceList(context, list)) < 0) {
-      throw new LibUsbException("Unable to get device list", result);
-    }
-    for (Device device : list) {
-      DeviceDescriptor desc = new DeviceDescriptor();
-      LibUsb.getDeviceDescriptor(device, desc);
-      String usbClass = DescriptorUtils.getUSBClassName(desc.bDeviceClass());
-      short vend = desc.idVendor();
-      short prod = desc.idProduct();
-      if (!"hub".equalsIgnoreCase(usbClass) && vend == vendorId) {
-        if (prod == productId) {
-          handle = new DeviceHandle();
-          byte numConfigs = desc.bNumConfigurations();
-          for (byte ii = 0; ii < numConfigs; ii++) {
-            ConfigDescriptor cDesc = new ConfigDescriptor();
-            if (LibUsb.getConfigDescriptor(device, ii, cDesc) >= 0) {
-              Interface[] ifaces = cDesc.iface();
-              for (Interface iface : ifaces) {
-                InterfaceDescriptor[] iDescs = iface.altsetting();
-                for (InterfaceDescriptor iDesc : iDescs) {
-                  this.iFace = iDesc.bInterfaceNumber();
-                  byte numEndpoints = iDesc.bNumEndpoints();
-                  if (numEndpoints > 0) {
-                    EndpointDescriptor[] eDescs = iDesc.endpoint();
-                    for (EndpointDescriptor eDesc : eDescs) {
-                      byte endAdd = eDesc.bEndpointAddress();
-                      byte eAttr = eDesc.bmAttributes();
-                      if ((eAttr & 0x03) == 2) {
-                        if ((endAdd & 0x80) != 0) {
-                          this.inEnd = endAdd;
-                        } else {
-                          maxPkt = eDesc.wMaxPacketSize();
-                          this.outEnd = endAdd;
-                        }
-                      }
-                    }
-                  }
-                }
-              }
-            }
-          }
-          if ((result = LibUsb.open(device, handle)) >= 0) {
-            handleOpen = true;
+    this(vendorId, productId, null);
+  }
+
+  /**
+   *  Opens the first device matching vendorId and productId, or, if serial is not null, the device whose
+   *  serial number string descriptor matches serial (used to tell apart multiple identical instruments).
+   *  The interface and endpoints come from the DeviceRegistry's cache, so no descriptors are parsed here
+   */
+  USBIO (short vendorId, short productId, String serial) {
+    registry = DeviceRegistry.shared();
+    int result = ERROR_NOT_FOUND;
+    for (DeviceRegistry.Info info : registry.find(vendorId, productId, serial)) {
+      handle = new DeviceHandle();
+      if ((result = LibUsb.open(info.device, handle)) >= 0) {
+        handleOpen = true;
+        DeviceRegistry.readStrings(info, handle);
+        this.serial = info.serial;
+        if (serial != null && !serial.equals(this.serial)) {
+          LibUsb.close(handle);
+          handleOpen = false;
+          continue;
+        }
+        iFace = info.iFace;
+        inEnd = info.inEnd;
+        outEnd = info.outEnd;
+        intEnd = info.intEnd;
+        maxPkt = info.maxPkt;
+        if ((result = LibUsb.claimInterface(handle, iFace)) == LibUsb.SUCCESS) {
+          interfaceOpen = true;
+          return;
+        } else {
+          if (LibUsb.detachKernelDriver(handle, iFace) == LibUsb.SUCCESS) {
             if ((result = LibUsb.claimInterface(handle, iFace)) == LibUsb.SUCCESS) {
               interfaceOpen = true;
               return;
-            } else {
-              if (LibUsb.detachKernelDriver(handle, iFace) == LibUsb.SUCCESS) {
-                if ((result = LibUsb.claimInterface(handle, iFace)) == LibUsb.SUCCESS) {
-                  interfaceOpen = true;
-                  return;
-                }
-                throw new LibUsbException("Unable to claim interface", result);
-              }
             }
             LibUsb.close(handle);
             handleOpen = false;
+            throw new LibUsbException("Unable to claim interface", result);
           }
         }
+        LibUsb.close(handle);
+        handleOpen = false;
       }
     }
-    LibUsb.exit(context);
     throw new LibUsbException("Unable to open selected device", result < 0 ? result : ERROR_NOT_FOUND);
   }
 
-  void resetDevice () {
+  public int getMaxPkt () {
+    return maxPkt;
+  }
+
+  public void resetDevice () {
     if (handle != null) {
       LibUsb.resetDevice(handle);
     }
   }
 
-  void send (byte[] data) {
-    ByteBuffer outBuf = BufferUtils.allocateByteBuffer(data.length);
-    outBuf.put(data);
-    IntBuffer outNum = IntBuffer.allocate(1);
+  /**
+   *  Health check used before reusing an open session.  Querying the active configuration goes to the
+   *  device, so it fails with ERROR_NO_DEVICE once the instrument has been unplugged or power cycled
+   */
+  public boolean isAlive () {
+    if (!handleOpen || !interfaceOpen) {
+      return false;
+    }
+    IntBuffer config = IntBuffer.allocate(1);
+    return LibUsb.getConfiguration(handle, config) == LibUsb.SUCCESS;
+  }
+
+  /**
+   *  Sends the bytes between data's position and limit.  bulkTransfer() always sends a direct buffer's
+   *  full capacity, so a slice trimmed to the remaining bytes is passed rather than copying the data
+   */
+  public void send (ByteBuffer data) {
+    ByteBuffer outBuf = data.slice();
     int error;
-    if ((error = LibUsb.bulkTransfer(handle, outEnd, outBuf, outNum, TIMEOUT)) < 0) {
+    if ((error = LibUsb.bulkTransfer(handle, outEnd, outBuf, xferNum, TIMEOUT)) < 0) {
       throw new LibUsbException("Unable to send data", error);
     }
+    int cnt = xferNum.get(0);
+    metrics.txPackets.add((cnt + maxPkt - 1) / maxPkt);
+    metrics.txBytes.add(cnt);
+    data.position(data.limit());
   }
 
-  byte[] receive () {
-    ByteBuffer inBuf = ByteBuffer.allocateDirect(maxPkt * 2).order(ByteOrder.LITTLE_ENDIAN);
-    IntBuffer inNum = IntBuffer.allocate(1);                                // Used to get bytes read count
-    int error;
-    int retry = 3;
-    do {
-      if ((error = LibUsb.bulkTransfer(handle, inEnd, inBuf, inNum, TIMEOUT)) >= 0) {
-        if (inBuf.hasArray()) {
-          return inBuf.array();
-        } else {
-          int cnt = inNum.get(0);
-          int cap = inBuf.capacity();
-          byte[] data = new byte[cnt];
-          for (int ii = 0; ii < cnt && ii < cap; ii++) {
-            data[ii] = inBuf.get();
+  public void setMetrics (Metrics.Device metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setTimeout (int millis) {
+    timeout = millis;
+  }
+
+  public void setExpected (int bytes) {
+    expected = bytes;
+  }
+
+  public int getTimeout () {
+    return timeout;
+  }
+
+  /**
+   *  Reads up to length bytes with a single bulk transfer directly into dst, starting at its position, which
+   *  is then advanced by the number of bytes received.  The transfer ends early when the device sends a
+   *  short packet.  The length is rounded up to a multiple of maxPkt (dst must have room for this) and the
+   *  timeout is scaled by the length (or by the expected size, when that's known and smaller) so that a
+   *  multi-megabyte read is not cut off.  A read that times out is not retried here, as USBTMC re-issues it
+   *  with the timeout its TimeoutPolicy backs off to, and then recovers with abortIn() and clear()
+   *  @return number of bytes received
+   */
+  public int receive (ByteBuffer dst, int length) {
+    int size = Math.min((length + maxPkt - 1) / maxPkt * maxPkt, dst.remaining());
+    ByteBuffer inBuf = dst.duplicate();
+    inBuf.limit(dst.position() + size);
+    inBuf = inBuf.slice();
+    xferNum.put(0, 0);
+    int allow = expected >= 0 ? Math.min(expected, size) : size;
+    int error = LibUsb.bulkTransfer(handle, inEnd, inBuf, xferNum, timeout + allow / 1024);
+    int cnt = xferNum.get(0);
+    if (error >= 0 || (error == ERROR_TIMEOUT && cnt > 0)) {
+      dst.position(dst.position() + cnt);
+      countIn(cnt);
+      return cnt;
+    }
+    if (error == ERROR_TIMEOUT) {
+      metrics.timeouts.increment();
+    }
+    throw new LibUsbException("Unable to receive data", error);
+  }
+
+  /**
+   *  Sends a USBTMC class specific control request and reads its response into a direct buffer
+   *  @param recipient 0x01 (interface) or 0x02 (endpoint)
+   *  @return response, or null if the request failed
+   */
+  private ByteBuffer control (int recipient, byte request, int value, int index, int length) {
+    ByteBuffer buf = ByteBuffer.allocateDirect(length);
+    int result = LibUsb.controlTransfer(handle, (byte) (0xA0 | recipient), request, (short) value, (short) index, buf,
+                                        TIMEOUT);
+    return result > 0 ? buf : null;
+  }
+
+  /**
+   *  Reads and discards whatever the device has queued on the bulk-IN endpoint
+   */
+  private void drain () {
+    ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(maxPkt, 64) * 16);
+    for (int ii = 0; ii < 1024; ii++) {
+      xferNum.put(0, 0);
+      int error = LibUsb.bulkTransfer(handle, inEnd, buf, xferNum, 100);
+      if (error < 0 || xferNum.get(0) < buf.capacity()) {
+        break;
+      }
+    }
+  }
+
+  public boolean abortIn (byte tag) {
+    ByteBuffer rsp = control(0x02, INITIATE_ABORT_BULK_IN, tag & 0xFF, inEnd & 0xFF, 2);
+    if (rsp == null) {
+      return false;
+    } else if (rsp.get(0) == STATUS_FAILED) {
+      return true;                  // No transfer in progress, so nothing to abort
+    } else if (rsp.get(0) != STATUS_SUCCESS) {
+      return false;
+    }
+    for (int ii = 0; ii < 50; ii++) {
+      drain();
+      rsp = control(0x02, CHECK_ABORT_BULK_IN_STATUS, 0, inEnd & 0xFF, 8);
+      if (rsp == null || rsp.get(0) != STATUS_PENDING) {
+        break;
+      }
+    }
+    return rsp != null && rsp.get(0) == STATUS_SUCCESS;
+  }
+
+  public boolean clear () {
+    ByteBuffer rsp = control(0x01, INITIATE_CLEAR, 0, iFace & 0xFF, 1);
+    if (rsp == null || rsp.get(0) != STATUS_SUCCESS) {
+      return false;
+    }
+    for (int ii = 0; ii < 50; ii++) {
+      rsp = control(0x01, CHECK_CLEAR_STATUS, 0, iFace & 0xFF, 2);
+      if (rsp == null || rsp.get(0) != STATUS_PENDING) {
+        break;
+      }
+      if ((rsp.get(1) & 0x01) != 0) {
+        drain();                    // bmClear.D0 set: device wants the host to read its queued data
+      } else {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return rsp != null && rsp.get(0) == STATUS_SUCCESS && LibUsb.clearHalt(handle, outEnd) == LibUsb.SUCCESS;
+  }
+
+  /**
+   *  Reads the status byte with a USB488 READ_STATUS_BYTE request.  Devices with an interrupt-IN endpoint
+   *  send the status byte there (tagged with the request's bTag, which runs from 2 to 127) rather than in
+   *  the response to the request
+   */
+  public synchronized int readStatusByte () {
+    statusTag = (byte) (statusTag >= 127 ? 2 : statusTag + 1);
+    if (intEnd != 0) {
+      startInterrupt();
+      statusReplies.clear();
+    }
+    ByteBuffer rsp = control(0x01, READ_STATUS_BYTE, statusTag, iFace & 0xFF, 3);
+    if (rsp == null || rsp.get(0) != STATUS_SUCCESS) {
+      return -1;
+    }
+    if (intEnd == 0) {
+      return rsp.get(2) & 0xFF;
+    }
+    try {
+      long until = System.currentTimeMillis() + TIMEOUT;
+      Integer reply;
+      while ((reply = statusReplies.poll(Math.max(1, until - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) != null) {
+        if (reply >> 8 == statusTag) {
+          return reply & 0xFF;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return -1;
+  }
+
+  public boolean setServiceListener (IntConsumer listener) {
+    serviceListener = listener;
+    if (intEnd != 0 && listener != null) {
+      startInterrupt();
+    }
+    return intEnd != 0;
+  }
+
+  /**
+   *  Starts the thread that reads the interrupt-IN endpoint, which passes service requests to the service
+   *  listener and status bytes (sent in reply to READ_STATUS_BYTE) to readStatusByte()
+   */
+  private synchronized void startInterrupt () {
+    if (intThread != null) {
+      return;
+    }
+    intRunning = true;
+    intThread = new Thread(() -> {
+      ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(maxPkt, 64));
+      IntBuffer count = IntBuffer.allocate(1);
+      while (intRunning) {
+        count.put(0, 0);
+        int error = LibUsb.interruptTransfer(handle, intEnd, buf, count, 250);
+        if (error == ERROR_TIMEOUT) {
+          continue;
+        } else if (error < 0) {
+          break;                    // Device gone, or session closed
+        }
+        if (count.get(0) >= 2) {
+          int notify1 = buf.get(0) & 0xFF;
+          int stb = buf.get(1) & 0xFF;
+          IntConsumer listener = serviceListener;
+          if (notify1 == SRQ) {
+            if (listener != null) {
+              listener.accept(stb);
+            }
+          } else if ((notify1 & 0x80) != 0) {
+            statusReplies.offer((notify1 & 0x7F) << 8 | stb);
           }
-          inBuf.clear();
-          return data;
         }
       }
-    } while (error == -7 && --retry > 0);
-    throw new LibUsbException("Unable to receive data", error);
+    }, "USBIO interrupt");
+    intThread.setDaemon(true);
+    intThread.start();
+  }
+
+  /**
+   *  Allocates the transfers used by receiveAsync() and makes sure the DeviceRegistry's event thread, which
+   *  invokes their completion callbacks, is running.  libusb requires one event handler per Context, so
+   *  sessions don't run their own
+   */
+  private void allocTransfers () {
+    completed = new LinkedBlockingQueue<>();
+    transfers = new Transfer[ASYNC_DEPTH];
+    for (int ii = 0; ii < ASYNC_DEPTH; ii++) {
+      transfers[ii] = LibUsb.allocTransfer();
+    }
+    registry.startEvents();
   }
 
-  void close () {
+  /**
+   *  Asynchronous version of receive(ByteBuffer, int) that keeps up to ASYNC_DEPTH bulk-IN transfers of
+   *  ASYNC_CHUNK bytes queued so the device can stream data without the host idling between requests.
+   *  Transfers complete in order, and a short transfer marks the end of the data, at which point any
+   *  transfers still queued are cancelled.
+   *  @return number of bytes received
+   */
+  public int receiveAsync (ByteBuffer dst, int length) {
+    if (transfers == null) {
+      allocTransfers();
+    }
+    int size = Math.min((length + maxPkt - 1) / maxPkt * maxPkt, dst.remaining());
+    int base = dst.position();
+    int next = 0;                 // Offset of next chunk to submit
+    int done = 0;                 // Bytes received in completed transfers
+    int inFlight = 0;
+    int error = LibUsb.SUCCESS;
+    boolean finished = false;
+    TransferCallback callback = completed::add;
+    try {
+      for (int ii = 0; ii < ASYNC_DEPTH && next < size; ii++) {
+        next += submitChunk(transfers[ii], dst, base + next, Math.min(ASYNC_CHUNK, size - next), callback);
+        inFlight++;
+      }
+      while (inFlight > 0) {
+        Transfer xfer = completed.take();
+        inFlight--;
+        int status = xfer.status();
+        if (finished || status == TRANSFER_CANCELLED) {
+          continue;
+        }
+        if (status != TRANSFER_COMPLETED && !(status == TRANSFER_TIMED_OUT && xfer.actualLength() > 0)) {
+          error = status == TRANSFER_TIMED_OUT ? ERROR_TIMEOUT : status == TRANSFER_NO_DEVICE ? ERROR_NO_DEVICE : ERROR_IO;
+        }
+        done += xfer.actualLength();
+        if (error != LibUsb.SUCCESS || xfer.actualLength() < xfer.length() || done >= size) {
+          // Short packet, or error, so cancel transfers still queued and wait for their callbacks
+          finished = true;
+          for (Transfer pending : transfers) {
+            LibUsb.cancelTransfer(pending);
+          }
+        } else if (next < size) {
+          next += submitChunk(xfer, dst, base + next, Math.min(ASYNC_CHUNK, size - next), callback);
+          inFlight++;
+        }
+      }
+    } catch (InterruptedException ex) {
+      cancelAll(inFlight);
+      Thread.currentThread().interrupt();
+      throw new LibUsbException("Interrupted receiving data", ERROR_INTERRUPTED);
+    } catch (RuntimeException ex) {
+      cancelAll(inFlight);
+      throw ex;
+    }
+    if (error != LibUsb.SUCCESS) {
+      throw new LibUsbException("Unable to receive data", error);
+    }
+    dst.position(base + done);
+    countIn(done);
+    return done;
+  }
+
+  /**
+   *  Cancels the transfers still queued and waits, ignoring interrupts, for the callbacks of all inFlight of
+   *  them, so none is left writing into the caller's buffer or waiting in completed for the next call
+   */
+  private void cancelAll (int inFlight) {
+    for (Transfer pending : transfers) {
+      LibUsb.cancelTransfer(pending);
+    }
+    boolean interrupted = false;
+    while (inFlight > 0) {
+      try {
+        completed.take();
+        inFlight--;
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void countIn (int bytes) {
+    // A transfer ends with a short (possibly zero length) packet unless it filled the buffer
+    metrics.rxPackets.add(bytes / maxPkt + 1);
+    metrics.rxBytes.add(bytes);
+  }
+
+  private int submitChunk (Transfer xfer, ByteBuffer dst, int offset, int length, TransferCallback callback) {
+    ByteBuffer chunk = dst.duplicate();
+    chunk.limit(offset + length);
+    chunk.position(offset);
+    LibUsb.fillBulkTransfer(xfer, handle, inEnd, chunk.slice(), callback, null, timeout + length / 1024);
+    int error;
+    if ((error = LibUsb.submitTransfer(xfer)) < 0) {
+      throw new LibUsbException("Unable to submit transfer", error);
+    }
+    return length;
+  }
+
+  public void close () {
+    if (intThread != null) {
+      intRunning = false;
+      try {
+        intThread.join(500);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      intThread = null;
+    }
+    if (transfers != null) {
+      // receiveAsync() only returns once every transfer it submitted has completed, so none are in flight
+      for (Transfer xfer : transfers) {
+        LibUsb.freeTransfer(xfer);
+      }
+      transfers = null;
+    }
     try {
       if (interfaceOpen && handleOpen) {
         int error = LibUsb.releaseInterface(handle, iFace);
@@ -149,10 +470,6 @@ class USBIO {
         LibUsb.close(handle);
         handleOpen = false;
       }
-      if (contextOpen) {
-        LibUsb.exit(context);
-        contextOpen = false;
-      }
     }
   }
 }
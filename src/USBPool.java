@@ -0,0 +1,147 @@
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Keeps USBTMC sessions open across commands so that the libusb Context and the claimed DeviceHandle
+ *  are reused instead of being re-created (init, device list walk, descriptor walk, open, claim) for
+ *  every command.  Sessions are keyed by vendor id, product id and serial number, are closed after
+ *  sitting idle for IDLE_TIMEOUT ms and are health checked before reuse, so a session whose device
+ *  was unplugged, or power cycled, is discarded and transparently re-opened on the next acquire().
+ */
+
+class USBPool {
+  private static final long       IDLE_TIMEOUT = 60000;
+  private final Map<String,Entry> sessions = new HashMap<>();
+  private final ScheduledExecutorService reaper;
+  private long                    opens, reuses, reconnects, openNanos;
+
+  private static class Entry {
+    USBTMC  tmc;
+    long    lastUsed;
+    boolean inUse;
+
+    Entry (USBTMC tmc) {
+      this.tmc = tmc;
+    }
+  }
+
+  USBPool () {
+    reaper = Executors.newSingleThreadScheduledExecutor(run -> {
+      Thread thread = new Thread(run, "USBPool reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reaper.scheduleWithFixedDelay(this::closeIdle, IDLE_TIMEOUT / 4, IDLE_TIMEOUT / 4, TimeUnit.MILLISECONDS);
+  }
+
+  private static String key (short vend, short prod, String serial) {
+    return String.format("%04X:%04X:%s", vend, prod, serial != null ? serial : "*");
+  }
+
+  /**
+   *  Returns an open session for the device, reusing a pooled one when it passes its health check
+   *  @param serial serial number of the device, or null to match any device with vend/prod
+   */
+  synchronized USBTMC acquire (short vend, short prod, String serial) {
+    String key = key(vend, prod, serial);
+    Entry entry = sessions.get(key);
+    if (entry != null) {
+      if (entry.inUse) {
+        throw new IllegalStateException("Session " + key + " already in use");
+      }
+      if (entry.tmc.isAlive()) {
+        entry.inUse = true;
+        reuses++;
+        return entry.tmc;
+      }
+      // Device went away (unplugged, or power cycled) so drop stale handle and reconnect
+      sessions.remove(key);
+      entry.tmc.close();
+      reconnects++;
+    }
+    long start = System.nanoTime();
+    USBTMC tmc = new USBTMC(new USBIO(vend, prod, serial));
+    openNanos += System.nanoTime() - start;
+    opens++;
+    entry = new Entry(tmc);
+    entry.inUse = true;
+    sessions.put(key, entry);
+    return tmc;
+  }
+
+  /**
+   *  Acquires a session for dev and sets it up with the device's transfer mode, learned timeouts and metrics
+   */
+  synchronized USBTMC acquire (RglComm.Rigol dev, String serial) {
+    long start = System.nanoTime();
+    long prior = opens;
+    USBTMC tmc = acquire(dev.vend, dev.prod, serial);
+    Metrics.Device metrics = dev.getMetrics();
+    if (opens != prior) {
+      metrics.open.record(System.nanoTime() - start);
+    }
+    tmc.largeXfer = dev.largeXfer;
+    tmc.timeouts = dev.timeouts;
+    tmc.setMetrics(metrics);
+    return tmc;
+  }
+
+  /**
+   *  Returns a session to the pool after a command completes successfully
+   */
+  synchronized void release (USBTMC tmc) {
+    for (Entry entry : sessions.values()) {
+      if (entry.tmc == tmc) {
+        entry.inUse = false;
+        entry.lastUsed = System.currentTimeMillis();
+        return;
+      }
+    }
+  }
+
+  /**
+   *  Closes and removes a session after an error so the next acquire() opens a fresh one
+   */
+  synchronized void invalidate (USBTMC tmc) {
+    Iterator<Entry> iter = sessions.values().iterator();
+    while (iter.hasNext()) {
+      Entry entry = iter.next();
+      if (entry.tmc == tmc) {
+        iter.remove();
+        break;
+      }
+    }
+    tmc.close();
+  }
+
+  private synchronized void closeIdle () {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> iter = sessions.values().iterator();
+    while (iter.hasNext()) {
+      Entry entry = iter.next();
+      if (!entry.inUse && now - entry.lastUsed > IDLE_TIMEOUT) {
+        iter.remove();
+        entry.tmc.close();
+      }
+    }
+  }
+
+  synchronized void closeAll () {
+    for (Entry entry : sessions.values()) {
+      entry.tmc.close();
+    }
+    sessions.clear();
+  }
+
+  /**
+   *  Reports how much per-command setup time reuse has saved, based on the average measured cost
+   *  of opening a session
+   */
+  synchronized String getStats () {
+    double avgOpen = opens > 0 ? openNanos / (double) opens / 1e6 : 0;
+    return String.format("Pool: %d open, %d opens, %d reuses, %d reconnects, avg open %.1f ms, saved ~%.1f ms",
+                          sessions.size(), opens, reuses, reconnects, avgOpen, avgOpen * reuses);
+  }
+}
@@ -0,0 +1,495 @@
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  Implements the USBTMC message framing (DEV_DEP_MSG_OUT and REQUEST_DEV_DEP_MSG_IN) on top of a
+ *  Transport (normally a USBIO session).  Headers and payload are written straight into pooled direct
+ *  buffers and responses are read directly into a reusable response buffer, so a command and its response
+ *  cost a bounded number of small allocations rather than one or more per packet.
+ *
+ *  See: http://sdpha2.ucsd.edu/Lab_Equip_Manuals/usbtmc_usb488_subclass_1_00.pdf
+ */
+
+class USBTMC {
+  static final int          LARGE_XFER = 4 * 1024 * 1024;
+  private static final int  HDR = 12;
+  final Transport           usb;
+  boolean                   largeXfer = true;
+  boolean                   asyncIn = true;             // Use queued asynchronous transfers for large reads
+  TimeoutPolicy             timeouts;                   // Device's learned response times (null for defaults)
+  private Metrics.Device    metrics = Metrics.NONE;
+  private String            lastCmd, cmdClass;
+  private boolean           awaiting;                   // Waiting for the first message of a response
+  private long              sentAt, firstAt;
+  private byte              bTag;
+  private boolean           eom;
+  private ByteBuffer        txBuf, rxBuf;
+  private final byte[]      saved = new byte[HDR];
+  private final Object      srq = new Object();          // Notified on each service request
+  private Boolean           srqEnabled;                 // Null until the Transport has been asked
+  private int               srqCount, srqSeen, srqStatus;
+
+  /**
+   *  Thrown when a response doesn't arrive in the messages expected (a bad header or bTag, or a short or
+   *  truncated payload), which is how devices that can't handle a large TransferSize fail
+   */
+  static class FramingException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    FramingException (String msg) {
+      super(msg);
+    }
+  }
+
+  USBTMC (Transport usb) {
+    this.usb = usb;
+  }
+
+  /**
+   *  @return true if ex is a framing failure, or an overrun (the device sent more than was asked for),
+   *  rather than a timeout or other error that switching to compatible transfers would not fix
+   */
+  static boolean isFramingError (RuntimeException ex) {
+    return ex instanceof FramingException ||
+           ex instanceof LibUsbException && ((LibUsbException) ex).getErrorCode() == LibUsb.ERROR_OVERFLOW;
+  }
+
+  /**
+   *  Sets where this session's (and its Transport's) counters and phase timings are recorded
+   */
+  void setMetrics (Metrics.Device metrics) {
+    this.metrics = metrics;
+    usb.setMetrics(metrics);
+  }
+
+  Metrics.Device getMetrics () {
+    return metrics;
+  }
+
+  /**
+   *  bTag must be in the range 1-255 so skip 0 when the counter wraps
+   */
+  private byte nextTag () {
+    if (++bTag == 0) {
+      bTag = 1;
+    }
+    return bTag;
+  }
+
+  private void putHeader (ByteBuffer buf, int msgId, int size, int attr) {
+    byte tag = nextTag();
+    buf.put((byte) msgId);          //  0: MsgID
+    buf.put(tag);                   //  1: bTag
+    buf.put((byte) ~tag);           //  2: bTagInverse
+    buf.put((byte) 0x00);           //  3: Reserved
+    buf.putInt(size);               //  4-7: TransferSize (little endian)
+    buf.put((byte) attr);           //  8: bmTransfer Attributes
+    buf.put((byte) 0x00);           //  9: Reserved(0x00)
+    buf.put((byte) 0x00);           // 10: Reserved(0x00)
+    buf.put((byte) 0x00);           // 11: Reserved(0x00)
+  }
+
+  private int blockSize () {
+    // Note: making blockSize larger than 128 breaks communication with some devices
+    return Math.min(usb.getMaxPkt(), 512);
+  }
+
+  /**
+   *  Sends cmd and, if it's a query (contains '?'), reads the response
+   *  @return read-only view of the response payload, which is only valid until the next call, or null
+   */
+  ByteBuffer query (String cmd) {
+    write(cmd);
+    return cmd.indexOf('?') >= 0 ? read() : null;
+  }
+
+  /**
+   *  Sends a query and returns its response as text with any trailing newline removed
+   */
+  String queryText (String cmd) {
+    ByteBuffer rsp = query(cmd.endsWith("\n") ? cmd : cmd + '\n');
+    if (rsp == null) {
+      throw new IllegalArgumentException("Not a query: " + cmd);
+    }
+    char[] chars = new char[rsp.remaining()];
+    for (int ii = 0; ii < chars.length; ii++) {
+      chars[ii] = (char) (rsp.get(ii) & 0xFF);
+    }
+    return new String(chars).trim();
+  }
+
+  /**
+   *  Gives cmd a leading ':' unless it has one or is a common command (such as *RST), so that when it follows
+   *  another command after a ';' its header is taken from the root rather than from that command's path
+   */
+  static String root (String cmd) {
+    cmd = cmd.trim();
+    return cmd.startsWith(":") || cmd.startsWith("*") ? cmd : ":" + cmd;
+  }
+
+  /**
+   *  Sends cmds as one program message (separated by ';') and, if any of them are queries, reads the one
+   *  response message, which holds the replies to all of them, so the batch costs a single round trip.
+   *  Each command is rooted (given a leading ':' unless it's a common command such as *OPC?) so that it
+   *  means the same as it would if sent on its own
+   *  @return reply to each query, in order, as read-only views which are only valid until the next call
+   */
+  List<ByteBuffer> queryBatch (List<String> cmds) {
+    StringBuilder msg = new StringBuilder();
+    for (String cmd : cmds) {
+      msg.append(msg.length() > 0 ? ";" : "").append(root(cmd));
+    }
+    ByteBuffer rsp = query(msg.append('\n').toString());
+    return rsp != null ? Response.split(rsp) : Collections.<ByteBuffer>emptyList();
+  }
+
+  /**
+   *  Sends cmd and, if it's a query, streams the response through decoder
+   */
+  void query (String cmd, BlockDecoder decoder) throws IOException {
+    write(cmd);
+    if (cmd.indexOf('?') >= 0) {
+      read(decoder);
+    }
+  }
+
+  void write (String cmd) {
+    long start = System.nanoTime();
+    if (cmd != lastCmd) {
+      lastCmd = cmd;
+      cmdClass = TimeoutPolicy.classify(cmd);
+    }
+    int blockSize = blockSize();
+    if (txBuf == null) {
+      txBuf = BufferPool.shared.acquire(blockSize);
+    }
+    int len = cmd.length();
+    int idx = 0;
+    do {
+      txBuf.clear();
+      int pktSize = Math.min(blockSize - HDR, len - idx);
+      putHeader(txBuf, 1, pktSize, idx + pktSize >= len ? 0x01 : 0x00);  // EOM is set on last packet
+      for (int ii = 0; ii < pktSize; ii++) {
+        txBuf.put((byte) cmd.charAt(idx + ii));
+      }
+      while ((txBuf.position() & 0x03) != 0) {
+        txBuf.put((byte) 0x00);     // Pad to multiple of 4
+      }
+      txBuf.flip();
+      usb.send(txBuf);
+      idx += pktSize;
+    } while (idx < len);
+    sentAt = System.nanoTime();
+    metrics.messages.increment();
+    metrics.write.record(sentAt - start);
+    if (cmdClass != null) {
+      awaiting = true;
+    }
+  }
+
+  /**
+   *  Requests and reads DEV_DEP_MSG_IN messages until one arrives with EOM set.  Each message's header is
+   *  read in place just ahead of the payload received so far (the 12 payload bytes it overwrites are saved
+   *  and restored), so the payload ends up contiguous without being copied.
+   */
+  ByteBuffer read () {
+    int end = HDR;                  // End of payload received so far
+    do {
+      end += readMessage(end);
+    } while (!eom);
+    rxBuf.limit(end);
+    rxBuf.position(HDR);
+    responded(end - HDR, 0);
+    return rxBuf.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   *  Streaming version of read() that hands the payload of each DEV_DEP_MSG_IN message to decoder as soon
+   *  as it arrives, so the receive buffer only ever holds one message rather than the whole response
+   */
+  void read (BlockDecoder decoder) throws IOException {
+    long length = 0, decode = 0;
+    do {
+      int size = readMessage(HDR);
+      rxBuf.limit(HDR + size);
+      rxBuf.position(HDR);
+      long start = System.nanoTime();
+      decoder.feed(rxBuf);
+      decode += System.nanoTime() - start;
+      length += size;
+    } while (!eom);
+    long start = System.nanoTime();
+    decoder.finish();
+    decode += System.nanoTime() - start;
+    metrics.decode.record(decode);
+    responded(length, decode);
+  }
+
+  /**
+   *  Records the time from the end of the command to the end of its response and, if tracing, traces the
+   *  transaction
+   */
+  private void responded (long length, long decode) {
+    long now = System.nanoTime();
+    metrics.response.record(now - sentAt);
+    if (Metrics.shared.isTracing()) {
+      Metrics.shared.trace(String.format("%s %s -> %d bytes, first %.2f ms, total %.2f ms%s", metrics.name,
+                                         lastCmd.trim(), length, (firstAt - sentAt) / 1e6, (now - sentAt) / 1e6,
+                                         decode > 0 ? String.format(", decode %.2f ms", decode / 1e6) : ""));
+    }
+  }
+
+  /**
+   *  Requests and reads one DEV_DEP_MSG_IN message, placing its payload at offset end in rxBuf and setting
+   *  eom if it was the last message of the response
+   *  @return size of the payload
+   */
+  private int readMessage (int end) {
+    boolean first = awaiting;
+    int blockSize = blockSize();
+    // Leave room for the header and for rounding the read up to maxPkt so a large read fits in LARGE_XFER
+    int xferSize = largeXfer ? LARGE_XFER - 2 * usb.getMaxPkt() : blockSize;
+    if (txBuf == null) {
+      txBuf = BufferPool.shared.acquire(blockSize);
+    }
+    txBuf.clear();
+    putHeader(txBuf, 2, xferSize, 0x00);
+    txBuf.flip();
+    usb.send(txBuf);
+    byte tag = bTag;
+    int hdr = end - HDR;
+    ensure(end, end + xferSize + usb.getMaxPkt());
+    rxBuf.limit(rxBuf.capacity());
+    rxBuf.position(hdr);
+    rxBuf.get(saved);
+    rxBuf.position(hdr);
+    int got = receiveFirst(HDR + xferSize);
+    if (got < HDR || rxBuf.get(hdr) != 2 || rxBuf.get(hdr + 1) != tag || rxBuf.get(hdr + 2) != (byte) ~tag) {
+      if (got >= HDR && rxBuf.get(hdr) == 2) {
+        metrics.tagErrors.increment();
+      }
+      throw new FramingException("Invalid DEV_DEP_MSG_IN header");
+    }
+    int size = rxBuf.getInt(hdr + 4);
+    eom = (rxBuf.get(hdr + 8) & 0x01) != 0;
+    if (first && timeouts != null) {
+      timeouts.recordSize(cmdClass, size);
+    }
+    // Device may split the message across several bulk transfers, so read the rest of the payload
+    while (got - HDR < size) {
+      int cnt = usb.receive(rxBuf, size - (got - HDR));
+      if (cnt == 0) {
+        throw new FramingException("Short DEV_DEP_MSG_IN payload: " + (got - HDR) + " of " + size);
+      }
+      got += cnt;
+    }
+    rxBuf.position(hdr);
+    rxBuf.put(saved);
+    return size;
+  }
+
+  /**
+   *  Receives the first transfer of a message.  For the first message of a response the timeout comes from
+   *  the TimeoutPolicy for the query's class, and the time taken is recorded to refine it.  If that read
+   *  times out the request is still pending in the device, so the read is issued again with the policy's
+   *  backed-off timeout, until the answer arrives or MAX has been waited for
+   */
+  private int receiveFirst (int length) {
+    boolean first = awaiting;
+    awaiting = false;
+    boolean policy = first && timeouts != null;
+    int timeout = policy ? timeouts.getTimeout(cmdClass) : 0;
+    if (policy) {
+      // Allow for the size of the response expected, not for the whole of the (possibly huge) buffer
+      usb.setExpected(timeouts.getSize(cmdClass));
+    }
+    try {
+      while (true) {
+        if (policy) {
+          usb.setTimeout(timeout);
+        }
+        try {
+          int got = largeXfer && asyncIn ? usb.receiveAsync(rxBuf, length) : usb.receive(rxBuf, length);
+          if (first) {
+            firstAt = System.nanoTime();
+            metrics.firstByte.record(firstAt - sentAt);
+            if (policy) {
+              timeouts.record(cmdClass, firstAt - sentAt);
+            }
+          }
+          return got;
+        } catch (LibUsbException ex) {
+          if (!policy || ex.getErrorCode() != LibUsb.ERROR_TIMEOUT) {
+            throw ex;
+          }
+          timeouts.timedOut(cmdClass);
+          int next = timeouts.getTimeout(cmdClass);
+          if (timeout >= TimeoutPolicy.MAX || next <= timeout) {
+            throw ex;
+          }
+          metrics.retries.increment();
+          timeout = next;
+        }
+      }
+    } finally {
+      if (policy) {
+        usb.setTimeout(TimeoutPolicy.DEFAULT);
+        usb.setExpected(-1);
+      }
+    }
+  }
+
+  /**
+   *  Tries to get back in step with the device after a failed transaction without resetting it, by aborting
+   *  the last bulk-IN request and then clearing the device's buffers (USBTMC INITIATE_ABORT_BULK_IN and
+   *  INITIATE_CLEAR)
+   *  @return true if the device confirmed both, otherwise a reset is needed
+   */
+  boolean recover () {
+    awaiting = false;
+    metrics.errors.increment();
+    if (usb.abortIn(bTag) && usb.clear()) {
+      metrics.recoveries.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   *  @return the status byte (USB488 READ_STATUS_BYTE), or -1 if the device doesn't support it
+   */
+  int readStatusByte () {
+    return usb.readStatusByte();
+  }
+
+  /**
+   *  Starts listening for service requests, if the device can send them.  Requests that arrive before the
+   *  next wait are kept, so one that comes in just after the command that enables it is not missed
+   *  @return true if the device has an interrupt-IN endpoint
+   */
+  boolean listenForService () {
+    if (srqEnabled == null) {
+      srqEnabled = usb.setServiceListener(stb -> {
+        synchronized (srq) {
+          srqCount++;
+          srqStatus = stb;
+          srq.notifyAll();
+        }
+      });
+    }
+    return srqEnabled;
+  }
+
+  /**
+   *  Waits for a service request that has not yet been waited for
+   *  @return the status byte sent with the service request
+   */
+  private int waitSrq (int millis) {
+    long until = System.currentTimeMillis() + millis;
+    synchronized (srq) {
+      while (srqCount == srqSeen) {
+        long left = until - System.currentTimeMillis();
+        if (left <= 0) {
+          throw new IllegalStateException("No service request within " + millis + " ms");
+        }
+        try {
+          srq.wait(left);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted waiting for service request");
+        }
+      }
+      srqSeen = srqCount;
+      return srqStatus;
+    }
+  }
+
+  /**
+   *  Waits for the device to request service, which it does when a bit enabled by *SRE is set in its status
+   *  byte, such as one enabled (with *SRE and *ESE) to signal a trigger or a completed measurement.  Returns
+   *  at once if a request has arrived since listenForService() was called or the last wait ended
+   *  @return the status byte sent with the service request
+   */
+  int waitService (int millis) {
+    if (!listenForService()) {
+      throw new IllegalStateException("Device has no interrupt endpoint for service requests");
+    }
+    return waitSrq(millis);
+  }
+
+  /**
+   *  Waits until the operations started by the commands sent so far are complete.  If the device can send
+   *  service requests it's told to send one when they are (*OPC sets the OPC bit of the event status
+   *  register, which *ESE 1 passes to the ESB bit of the status byte, which *SRE 32 turns into a service
+   *  request), so this returns the moment they're done, without polling.  The *ESE and *SRE settings are
+   *  restored afterwards, but the event status register and status byte are left cleared by the *CLS
+   *  needed to start from a known state.  Otherwise *OPC? is sent, which the device answers once the
+   *  operations are complete, and its reply is waited for
+   */
+  void waitComplete (int millis) {
+    if (listenForService()) {
+      String[] enables = queryText("*ESE?;*SRE?").split(";");
+      synchronized (srq) {
+        srqSeen = srqCount;
+      }
+      write("*CLS;*ESE 1;*SRE 32;*OPC\n");
+      try {
+        waitSrq(millis);
+      } finally {
+        write("*ESE " + (int) Double.parseDouble(enables[0].trim()) + ";*SRE " +
+              (int) Double.parseDouble(enables[enables.length - 1].trim()) + "\n");
+      }
+      return;
+    }
+    TimeoutPolicy policy = timeouts;
+    int timeout = usb.getTimeout();
+    timeouts = null;                // The wait depends on the operations, so don't learn from it
+    usb.setTimeout(millis);
+    try {
+      queryText("*OPC?");
+    } finally {
+      usb.setTimeout(timeout);
+      timeouts = policy;
+    }
+  }
+
+  /**
+   *  Makes sure rxBuf has a capacity of at least need bytes, preserving its first keep bytes
+   */
+  private void ensure (int keep, int need) {
+    if (rxBuf == null || rxBuf.capacity() < need) {
+      ByteBuffer buf = BufferPool.shared.acquire(need);
+      if (rxBuf != null) {
+        rxBuf.clear();
+        rxBuf.limit(keep);
+        buf.put(rxBuf);
+        BufferPool.shared.release(rxBuf);
+      }
+      rxBuf = buf;
+    }
+  }
+
+  boolean isAlive () {
+    return usb.isAlive();
+  }
+
+  void resetDevice () {
+    metrics.resets.increment();
+    usb.resetDevice();
+  }
+
+  void close () {
+    try {
+      usb.close();
+    } finally {
+      BufferPool.shared.release(txBuf);
+      BufferPool.shared.release(rxBuf);
+      txBuf = rxBuf = null;
+    }
+  }
+}
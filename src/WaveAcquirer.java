@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+
+/**
+ *  Acquires a deep memory waveform record from an oscilloscope (DS4000/DS1000Z command set) by reading it
+ *  in windows of chunk points using :WAVeform:STARt and :WAVeform:STOP and storing each window directly
+ *  into a memory-mapped file, so a 24 Mpt capture never needs a heap array of that size.  Requests are
+ *  pipelined: the request for the next window is sent while the current one is being stored.  A window
+ *  that fails (such as with a read timeout) is retried after a USBTMC abort and clear, and a failed
+ *  acquisition can be resumed by calling acquire() again, which continues from the first window not yet
+ *  stored.
+ */
+
+class WaveAcquirer {
+  static final int              DEFAULT_CHUNK = 250000;   // Max BYTE format points per read in RAW mode
+  private static final int      RETRIES = 3;
+  private USBTMC                tmc;
+  private final String          source;
+  private final int             chunk;
+  private final ExecutorService storer;
+  private MappedByteBuffer      map;
+  private File                  file;
+  private long                  points, done;
+  private WavePreamble          preamble;
+
+  interface Progress {
+    void update (long done, long points);
+  }
+
+  /**
+   *  @param source waveform source, such as "CHAN1"
+   *  @param chunk number of points to read per request
+   */
+  WaveAcquirer (USBTMC tmc, String source, int chunk) {
+    this.tmc = tmc;
+    this.source = source;
+    this.chunk = chunk;
+    storer = Executors.newSingleThreadExecutor(run -> {
+      Thread thread = new Thread(run, "WaveAcquirer store");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   *  Stops the scope, reads the memory depth and preamble and maps file to hold the record (only on the first call),
+   *  then reads any windows not yet stored (file is ignored when resuming)
+   *  @return the mapped record, one unsigned byte per point
+   */
+  MappedByteBuffer acquire (File file, Progress progress) throws IOException {
+    if (map == null) {
+      tmc.write(":STOP\n");
+      tmc.write(":WAV:SOUR " + source + ";:WAV:MODE RAW;:WAV:FORM BYTE\n");
+      this.file = file;
+      points = (long) Double.parseDouble(tmc.queryText(":ACQ:MDEP?"));
+      if (points <= 0 || points > Integer.MAX_VALUE) {
+        throw new IllegalStateException("Unsupported memory depth: " + points);
+      }
+      preamble = WavePreamble.parse(tmc.queryText(":WAV:PRE?"));
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(points);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, points);
+      }
+      done = 0;
+    } else {
+      // Resuming, possibly on a new session, so make sure the scope is still set up for the record
+      tmc.write(":WAV:SOUR " + source + ";:WAV:MODE RAW;:WAV:FORM BYTE\n");
+    }
+    int retry = RETRIES;
+    boolean requested = false;              // Request for the window at done has already been sent
+    while (done < points) {
+      long start = done;
+      int count = (int) Math.min(chunk, points - start);
+      try {
+        if (!requested) {
+          request(start, count);
+        }
+        requested = false;
+        ByteBuffer rsp = tmc.read();
+        Future<Integer> stored = storer.submit(() -> store(rsp, start, count));
+        // Overlap sending the next request, and the scope preparing its data, with storing this one
+        long next = start + count;
+        if (next < points) {
+          request(next, (int) Math.min(chunk, points - next));
+          requested = true;
+        }
+        done += get(stored);
+        retry = RETRIES;
+        if (progress != null) {
+          progress.update(done, points);
+        }
+      } catch (RuntimeException ex) {
+        if (--retry <= 0) {
+          throw ex;
+        }
+        boolean inStep = false;
+        if (requested) {
+          // Storing failed after the next window was requested, so read and discard its response
+          try {
+            tmc.read();
+            inStep = true;
+          } catch (RuntimeException ex2) {
+            // Ignore
+          }
+          requested = false;
+        }
+        // Abort and clear anything the scope still has queued before asking for the window again
+        if (!inStep && !tmc.recover()) {
+          throw ex;
+        }
+        tmc.getMetrics().retries.increment();
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ex2) {
+          Thread.currentThread().interrupt();
+          throw ex;
+        }
+      }
+    }
+    map.force();
+    return map;
+  }
+
+  private void request (long start, int count) {
+    // :WAV:STARt and :WAV:STOP are 1-based and inclusive
+    tmc.write(":WAV:STAR " + (start + 1) + ";:WAV:STOP " + (start + count) + ";:WAV:DATA?\n");
+  }
+
+  /**
+   *  Decodes the block in rsp and copies its body into the mapped record at offset start
+   */
+  private int store (ByteBuffer rsp, long start, int count) throws IOException {
+    ByteBuffer dst = map.duplicate();
+    dst.position((int) start);
+    dst.limit((int) start + count);
+    BlockDecoder decoder = new BlockDecoder(new BlockDecoder.Sink() {
+      public void begin (long length) {
+        if (length != count) {
+          throw new IllegalStateException("Expected " + count + " points, got " + length);
+        }
+      }
+
+      public void accept (ByteBuffer data) {
+        dst.put(data);
+      }
+
+      public void end () {}
+    });
+    decoder.feed(rsp);
+    decoder.finish();
+    if (!decoder.isBlock()) {
+      throw new IllegalStateException("Expected block response, got: " + decoder.getText());
+    }
+    return count;
+  }
+
+  private static int get (Future<Integer> future) {
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   *  Sets the session used to resume a failed acquisition, if the one it failed on was replaced
+   */
+  void setSession (USBTMC tmc) {
+    this.tmc = tmc;
+  }
+
+  long getPoints () {
+    return points;
+  }
+
+  /**
+   *  @return number of points stored so far
+   */
+  long getDone () {
+    return done;
+  }
+
+  /**
+   *  @return file the record is being stored in
+   */
+  File getFile () {
+    return file;
+  }
+
+  WavePreamble getPreamble () {
+    return preamble;
+  }
+
+  void close () {
+    storer.shutdown();
+  }
+}
@@ -0,0 +1,437 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Measurements (min, max, peak to peak, mean, RMS, frequency and rise time) and the amplitude spectrum of
+ *  a waveform that has been converted to volts (see WaveDecoder).  Large records are split into chunks of
+ *  SPLIT samples that are processed in parallel on a ForkJoinPool and the partial results combined.
+ *
+ *  The spectrum is computed with a radix-2 FFT of the largest power of two number of samples in the record,
+ *  using the usual trick of treating the n real samples as n/2 complex ones, so a 24 Mpt record needs a
+ *  2^23 point complex FFT.  The stages that fit in the cache are run on LOCAL sized blocks by one task per
+ *  block, and each larger stage is split across the pool.  The twiddle factors of each stage are stored
+ *  together, so every stage reads them in order.  The FFT work arrays and the twiddle table are kept and
+ *  reused by the next call, so repeated analysis of same sized records allocates nothing large.
+ */
+
+class WaveAnalysis {
+  private static final int    SPLIT = 1 << 16;      // Samples (or butterflies) per task
+  private static final int    LOCAL = 1 << 12;      // Largest FFT stage run as one task per block
+  private final ForkJoinPool  pool;
+  private float[]             re, im, mag;
+  private float[]             cos, sin;             // cos and sin of 2 pi jj / len at len / 2 + jj, for each len
+  private int                 tableSize;
+
+  /**
+   *  Windows applied before the FFT, as coefficients of a sum of cosines.  HANN is a good general choice,
+   *  FLATTOP gives the most accurate amplitudes and RECTANGULAR the narrowest peaks
+   */
+  enum Window {
+    RECTANGULAR(1),
+    HANN(0.5, 0.5),
+    HAMMING(0.54, 0.46),
+    BLACKMAN(0.42, 0.5, 0.08),
+    FLATTOP(0.21557895, 0.41663158, 0.277263158, 0.083578947, 0.006947368);
+
+    final double[] coef;
+
+    Window (double... coef) {
+      this.coef = coef;
+    }
+  }
+
+  static class Measurements {
+    final double  min, max, mean, rms;
+    final double  frequency;                        // 0 if fewer than two rising edges were found
+    final double  riseTime;                         // 10% to 90% of the first rising edge, or 0 if none
+
+    Measurements (double min, double max, double mean, double rms, double frequency, double riseTime) {
+      this.min = min;
+      this.max = max;
+      this.mean = mean;
+      this.rms = rms;
+      this.frequency = frequency;
+      this.riseTime = riseTime;
+    }
+
+    double getPeakToPeak () {
+      return max - min;
+    }
+
+    double getPeriod () {
+      return frequency > 0 ? 1 / frequency : 0;
+    }
+
+    @Override
+    public String toString () {
+      return String.format("Vpp %.4g V, Vmin %.4g V, Vmax %.4g V, Vavg %.4g V, Vrms %.4g V, Freq %.6g Hz, Rise %.4g s",
+                           getPeakToPeak(), min, max, mean, rms, frequency, riseTime);
+    }
+  }
+
+  /**
+   *  Amplitude spectrum, in volts RMS per bin from DC (bin 0) to half the sample rate (bin bins - 1).
+   *  magnitude is one of the analyzer's work arrays, so it's only valid until its next call to spectrum()
+   */
+  static class Spectrum {
+    final float[] magnitude;
+    final int     bins;
+    final double  binWidth;                         // Hz
+
+    Spectrum (float[] magnitude, int bins, double binWidth) {
+      this.magnitude = magnitude;
+      this.bins = bins;
+      this.binWidth = binWidth;
+    }
+
+    /**
+     *  @return bin with the largest amplitude, ignoring DC and the bins it leaks into through the window
+     */
+    int getPeak () {
+      int peak = 1;
+      while (peak < bins - 2 && magnitude[peak + 1] < magnitude[peak]) {
+        peak++;
+      }
+      for (int ii = peak + 1; ii < bins; ii++) {
+        if (magnitude[ii] > magnitude[peak]) {
+          peak = ii;
+        }
+      }
+      return peak;
+    }
+
+    double getPeakFrequency () {
+      return getPeak() * binWidth;
+    }
+
+    /**
+     *  Reduces the spectrum to columns values (such as one per pixel) by taking the largest amplitude of the
+     *  bins that fall in each column
+     *  @return amplitude of each column in dBV
+     */
+    float[] toColumns (int columns) {
+      float[] dst = new float[columns];
+      for (int ii = 0; ii < columns; ii++) {
+        int from = (int) ((long) ii * bins / columns);
+        int to = Math.max(from + 1, (int) ((long) (ii + 1) * bins / columns));
+        float max = 0;
+        for (int jj = from; jj < to; jj++) {
+          max = Math.max(max, magnitude[jj]);
+        }
+        dst[ii] = (float) (20 * Math.log10(Math.max(max, 1e-12)));
+      }
+      return dst;
+    }
+  }
+
+  /**
+   *  Body of a parallel loop, run on the range of indexes from (inclusive) to to (exclusive)
+   */
+  private interface Range {
+    void run (int from, int to);
+  }
+
+  private static class Split extends RecursiveAction {
+    private final Range body;
+    private final int   from, to, grain;
+
+    Split (Range body, int from, int to, int grain) {
+      this.body = body;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute () {
+      if (to - from <= grain) {
+        body.run(from, to);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Split(body, from, mid, grain), new Split(body, mid, to, grain));
+      }
+    }
+  }
+
+  /**
+   *  Rising edges found in one chunk of the record.  state is -1 after a sample below the low threshold, 1
+   *  after one above the high threshold and 0 before either has been seen
+   */
+  private static class Edges {
+    int     count, startState, startIdx, endState;
+    double  first, last;                            // Position of first and last rising edges, in samples
+  }
+
+  WaveAnalysis () {
+    this(ForkJoinPool.commonPool());
+  }
+
+  WaveAnalysis (ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  private void parallel (int count, int grain, Range body) {
+    pool.invoke(new Split(body, 0, count, grain));
+  }
+
+  /**
+   *  @param data voltage of each sample
+   *  @param count number of samples in data
+   *  @param xIncrement time between samples, in seconds
+   */
+  Measurements measure (float[] data, int count, double xIncrement) {
+    if (count < 2) {
+      throw new IllegalArgumentException("Too few samples: " + count);
+    }
+    int chunks = (count + SPLIT - 1) / SPLIT;
+    float[] mins = new float[chunks], maxs = new float[chunks];
+    double[] sums = new double[chunks], squares = new double[chunks];
+    parallel(chunks, 1, (from, to) -> {
+      for (int cc = from; cc < to; cc++) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        double sum = 0, square = 0;
+        for (int ii = cc * SPLIT, end = Math.min(count, ii + SPLIT); ii < end; ii++) {
+          float value = data[ii];
+          min = Math.min(min, value);
+          max = Math.max(max, value);
+          sum += value;
+          square += value * value;
+        }
+        mins[cc] = min;
+        maxs[cc] = max;
+        sums[cc] = sum;
+        squares[cc] = square;
+      }
+    });
+    float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+    double sum = 0, square = 0;
+    for (int cc = 0; cc < chunks; cc++) {
+      min = Math.min(min, mins[cc]);
+      max = Math.max(max, maxs[cc]);
+      sum += sums[cc];
+      square += squares[cc];
+    }
+    double frequency = 0, riseTime = 0;
+    float amp = max - min;
+    if (amp > 0) {
+      // Count rising edges through the middle, with 10% hysteresis so noise near the middle isn't counted
+      float mid = min + amp / 2;
+      float lo = mid - amp / 10, hi = mid + amp / 10;
+      Edges[] edges = new Edges[chunks];
+      parallel(chunks, 1, (from, to) -> {
+        for (int cc = from; cc < to; cc++) {
+          edges[cc] = findEdges(data, cc * SPLIT, Math.min(count, (cc + 1) * SPLIT), lo, hi);
+        }
+      });
+      int rising = 0, state = 0;
+      double first = 0, last = 0;
+      for (Edges edge : edges) {
+        if (state < 0 && edge.startState > 0) {
+          // Edge between the end of the previous chunk and the start of this one
+          last = cross(data, edge.startIdx, hi);
+          first = rising++ == 0 ? last : first;
+        }
+        if (edge.count > 0) {
+          first = rising == 0 ? edge.first : first;
+          last = edge.last;
+          rising += edge.count;
+        }
+        state = edge.endState != 0 ? edge.endState : state;
+      }
+      if (rising >= 2 && last > first) {
+        frequency = (rising - 1) / ((last - first) * xIncrement);
+      }
+      riseTime = riseTime(data, count, min + amp / 10, min + amp * 9 / 10) * xIncrement;
+    }
+    return new Measurements(min, max, sum / count, Math.sqrt(square / count), frequency, riseTime);
+  }
+
+  private static Edges findEdges (float[] data, int from, int to, float lo, float hi) {
+    Edges edges = new Edges();
+    int state = 0;
+    for (int ii = from; ii < to; ii++) {
+      float value = data[ii];
+      if (value >= hi) {
+        if (state < 0) {
+          double at = cross(data, ii, hi);
+          edges.first = edges.count++ == 0 ? at : edges.first;
+          edges.last = at;
+        } else if (state == 0) {
+          edges.startState = 1;
+          edges.startIdx = ii;
+        }
+        state = 1;
+      } else if (value <= lo) {
+        if (state == 0) {
+          edges.startState = -1;
+          edges.startIdx = ii;
+        }
+        state = -1;
+      }
+    }
+    edges.endState = state;
+    return edges;
+  }
+
+  /**
+   *  @return position, in samples, at which the record rises through level between samples idx - 1 and idx
+   */
+  private static double cross (float[] data, int idx, float level) {
+    if (idx == 0 || data[idx] == data[idx - 1]) {
+      return idx;
+    }
+    return idx - 1 + (level - data[idx - 1]) / (double) (data[idx] - data[idx - 1]);
+  }
+
+  /**
+   *  @return time, in samples, the first rising edge takes to go from lo to hi, or 0 if there is none
+   */
+  private static double riseTime (float[] data, int count, float lo, float hi) {
+    int lastLow = -1;
+    for (int ii = 0; ii < count; ii++) {
+      float value = data[ii];
+      if (value <= lo) {
+        lastLow = ii;
+      } else if (value >= hi && lastLow >= 0) {
+        return cross(data, ii, hi) - cross(data, lastLow + 1, lo);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   *  Computes the amplitude spectrum of the first n samples of data, where n is the largest power of two
+   *  not greater than count
+   *  @param xIncrement time between samples, in seconds
+   */
+  Spectrum spectrum (float[] data, int count, double xIncrement, Window window) {
+    if (count < 4) {
+      throw new IllegalArgumentException("Too few samples: " + count);
+    }
+    int n = Integer.highestOneBit(count);
+    int half = n / 2;
+    if (re == null || re.length < half) {
+      re = im = mag = null;                         // Let the old arrays go before allocating the new ones
+      re = new float[half];
+      im = new float[half];
+      mag = new float[half + 1];
+    }
+    if (tableSize != n) {
+      cos = sin = null;
+      float[] cosT = new float[n], sinT = new float[n];
+      parallel(half, SPLIT, (from, to) -> {
+        for (int ii = from; ii < to; ii++) {
+          double angle = 2 * Math.PI * ii / n;
+          cosT[half + ii] = (float) Math.cos(angle);
+          sinT[half + ii] = (float) Math.sin(angle);
+        }
+      });
+      // Each stage's twiddle factors are every other one of the next larger stage's
+      for (int len = half; len >= 2; len >>= 1) {
+        for (int jj = 0; jj < len / 2; jj++) {
+          cosT[len / 2 + jj] = cosT[len + 2 * jj];
+          sinT[len / 2 + jj] = sinT[len + 2 * jj];
+        }
+      }
+      cos = cosT;
+      sin = sinT;
+      tableSize = n;
+    }
+    pack(data, n, window);
+    transform(half);
+    // Unpack the n/2 point complex result into the n point real one, and scale it to volts RMS
+    double gain = window.coef[0];
+    float scale = (float) (Math.sqrt(2) / (n * gain));
+    float[] re = this.re, im = this.im, mag = this.mag, cos = this.cos, sin = this.sin;
+    parallel(half + 1, SPLIT, (from, to) -> {
+      for (int kk = from; kk < to; kk++) {
+        int k1 = kk & (half - 1), k2 = (half - kk) & (half - 1);
+        float zr = re[k1], zi = im[k1];
+        float er = (zr + re[k2]) / 2, ei = (zi - im[k2]) / 2;
+        float or = (zi + im[k2]) / 2, oi = (re[k2] - zr) / 2;
+        float wr = kk < half ? cos[half + kk] : -1, wi = kk < half ? -sin[half + kk] : 0;
+        float xr = er + wr * or - wi * oi, xi = ei + wr * oi + wi * or;
+        mag[kk] = (float) Math.sqrt(xr * xr + xi * xi) * (kk == 0 || kk == half ? scale / (float) Math.sqrt(2) : scale);
+      }
+    });
+    return new Spectrum(mag, half + 1, 1 / (n * xIncrement));
+  }
+
+  /**
+   *  Windows the first n samples and stores them as n/2 complex values (even samples as the real parts and
+   *  odd samples as the imaginary parts) in bit reversed order, ready for the in place FFT
+   */
+  private void pack (float[] data, int n, Window window) {
+    int half = n / 2;
+    int bits = Integer.numberOfTrailingZeros(half);
+    double[] coef = window.coef;
+    float[] re = this.re, im = this.im, cos = this.cos;
+    parallel(half, SPLIT, (from, to) -> {
+      for (int ii = from; ii < to; ii++) {
+        int rev = bits > 0 ? Integer.reverse(ii) >>> (32 - bits) : 0;
+        float even = data[2 * ii], odd = data[2 * ii + 1];
+        if (coef.length > 1) {
+          even *= weight(coef, cos, n, 2 * ii);
+          odd *= weight(coef, cos, n, 2 * ii + 1);
+        }
+        re[rev] = even;
+        im[rev] = odd;
+      }
+    });
+  }
+
+  /**
+   *  @return window weight for sample idx of n, using the table of cos(2 pi k / n) at n / 2 + k
+   */
+  private static float weight (double[] coef, float[] cos, int n, int idx) {
+    int half = n / 2;
+    double weight = coef[0];
+    for (int kk = 1; kk < coef.length; kk++) {
+      int pos = (kk * idx) & (n - 1);
+      float value = pos < half ? cos[half + pos] : -cos[pos];
+      weight += (kk & 1) != 0 ? -coef[kk] * value : coef[kk] * value;
+    }
+    return (float) weight;
+  }
+
+  /**
+   *  In place radix-2 decimation in time FFT of the size values (already in bit reversed order) in re/im
+   */
+  private void transform (int size) {
+    float[] re = this.re, im = this.im, cos = this.cos, sin = this.sin;
+    int local = Math.min(LOCAL, size);
+    parallel(size / local, 1, (from, to) -> {
+      for (int bb = from; bb < to; bb++) {
+        int base = bb * local;
+        for (int len = 2; len <= local; len <<= 1) {
+          int half = len / 2;
+          for (int jj = 0; jj < half; jj++) {
+            float wr = cos[half + jj], wi = -sin[half + jj];
+            for (int aa = base + jj; aa < base + local; aa += len) {
+              butterfly(re, im, aa, aa + half, wr, wi);
+            }
+          }
+        }
+      }
+    });
+    for (int len = local * 2; len <= size; len <<= 1) {
+      int half = len / 2;
+      parallel(size / 2, SPLIT, (from, to) -> {
+        for (int kk = from; kk < to; kk++) {
+          int jj = kk & (half - 1);
+          int aa = (kk - jj) * 2 + jj;
+          butterfly(re, im, aa, aa + half, cos[half + jj], -sin[half + jj]);
+        }
+      });
+    }
+  }
+
+  private static void butterfly (float[] re, float[] im, int aa, int bb, float wr, float wi) {
+    float tr = wr * re[bb] - wi * im[bb];
+    float ti = wr * im[bb] + wi * re[bb];
+    re[bb] = re[aa] - tr;
+    im[bb] = im[aa] - ti;
+    re[aa] += tr;
+    im[aa] += ti;
+  }
+}
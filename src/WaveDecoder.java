@@ -0,0 +1,172 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ *  Converts the samples returned by :WAVeform:DATA? into volts, and sample numbers into seconds, using the
+ *  scaling given by a WavePreamble, which is parsed once per acquisition.  BYTE samples are converted by
+ *  looking each one up in a table of the 256 possible voltages, WORD samples (little endian, of which
+ *  only the low byte is significant on Rigol scopes) with one multiply per sample and ASCII samples (comma
+ *  separated NR3 values already in volts) are parsed byte by byte without creating Strings.  Direct and
+ *  memory-mapped buffers are copied out in blocks to a scratch array first, as getting them one byte at a
+ *  time is much slower, so each inner loop is a simple pass over primitive arrays.
+ */
+
+class WaveDecoder {
+  private static final int    BLOCK = 64 * 1024;
+  private final WavePreamble  pre;
+  private final float[]       table;                // Volts for each BYTE sample value
+  private final float         scale, offset;
+  private byte[]              bytes;
+  private short[]             words;
+  private Response            number;               // Parses ASCII samples
+
+  WaveDecoder (WavePreamble pre) {
+    this.pre = pre;
+    scale = (float) pre.yIncrement;
+    offset = (float) (pre.yOrigin + pre.yReference);
+    table = new float[256];
+    for (int ii = 0; ii < table.length; ii++) {
+      table[ii] = (float) pre.toVolts(ii);
+    }
+  }
+
+  WavePreamble getPreamble () {
+    return pre;
+  }
+
+  /**
+   *  @return voltage of one BYTE or WORD sample value
+   */
+  float toVolts (int value) {
+    return value >= 0 && value < table.length ? table[value] : (value - offset) * scale;
+  }
+
+  /**
+   *  @return number of samples in src, which holds a record (or part of one) in the preamble's format
+   */
+  int getCount (ByteBuffer src) {
+    switch (pre.format) {
+      case WavePreamble.WORD:
+        return src.remaining() / 2;
+      case WavePreamble.ASCII:
+        int count = 0;
+        for (int ii = src.position(); ii < src.limit(); ii++) {
+          if (src.get(ii) == ',') {
+            count++;
+          }
+        }
+        return src.hasRemaining() ? count + 1 : 0;
+      default:
+        return src.remaining();
+    }
+  }
+
+  /**
+   *  @return voltage of each sample in src
+   */
+  float[] toVolts (ByteBuffer src) {
+    float[] dst = new float[getCount(src)];
+    int count = decode(src, dst, 0);
+    return count < dst.length ? Arrays.copyOf(dst, count) : dst;
+  }
+
+  /**
+   *  Converts the samples in src (from its position to its limit, which are not changed) to volts
+   *  @param dst array to store the voltages in, starting at off, which must have room for getCount(src)
+   *  @return number of samples converted
+   */
+  int decode (ByteBuffer src, float[] dst, int off) {
+    switch (pre.format) {
+      case WavePreamble.WORD:
+        return decodeWords(src, dst, off);
+      case WavePreamble.ASCII:
+        return decodeAscii(src, dst, off);
+      default:
+        return decodeBytes(src, dst, off);
+    }
+  }
+
+  private int decodeBytes (ByteBuffer src, float[] dst, int off) {
+    int count = src.remaining();
+    if (src.hasArray()) {
+      byte[] data = src.array();
+      int base = src.arrayOffset() + src.position();
+      for (int ii = 0; ii < count; ii++) {
+        dst[off + ii] = table[data[base + ii] & 0xFF];
+      }
+      return count;
+    }
+    if (bytes == null) {
+      bytes = new byte[BLOCK];
+    }
+    ByteBuffer in = src.duplicate();
+    for (int done = 0; done < count; ) {
+      int len = Math.min(BLOCK, count - done);
+      in.get(bytes, 0, len);
+      for (int ii = 0; ii < len; ii++) {
+        dst[off + done + ii] = table[bytes[ii] & 0xFF];
+      }
+      done += len;
+    }
+    return count;
+  }
+
+  private int decodeWords (ByteBuffer src, float[] dst, int off) {
+    ShortBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    int count = in.remaining();
+    if (words == null) {
+      words = new short[BLOCK / 2];
+    }
+    for (int done = 0; done < count; ) {
+      int len = Math.min(words.length, count - done);
+      in.get(words, 0, len);
+      for (int ii = 0; ii < len; ii++) {
+        dst[off + done + ii] = ((words[ii] & 0xFFFF) - offset) * scale;
+      }
+      done += len;
+    }
+    return count;
+  }
+
+  /**
+   *  Parses comma separated values such as "-1.234560e-02" with Response.parseNumber()
+   */
+  private int decodeAscii (ByteBuffer src, float[] dst, int off) {
+    if (number == null) {
+      number = new Response();
+    }
+    int idx = src.position();
+    int end = src.limit();
+    int count = 0;
+    while (idx < end) {
+      byte cc;
+      while (idx < end && ((cc = src.get(idx)) == ' ' || cc == ',' || cc == '\n' || cc == '\r')) {
+        idx++;
+      }
+      if (idx >= end) {
+        break;
+      }
+      int next = number.parseNumber(src, idx, end);
+      if (next < 0 || next < end && (cc = src.get(next)) != ',' && cc != ' ' && cc != '\n' && cc != '\r') {
+        throw new NumberFormatException("Invalid ASCII sample at offset " + idx);
+      }
+      dst[off + count++] = (float) number.getNumber();
+      idx = next;
+    }
+    return count;
+  }
+
+  /**
+   *  @return time, relative to the trigger, of count samples starting with sample first
+   */
+  float[] toSeconds (long first, int count) {
+    float[] dst = new float[count];
+    double start = pre.toSeconds(first);
+    for (int ii = 0; ii < count; ii++) {
+      dst[ii] = (float) (start + ii * pre.xIncrement);
+    }
+    return dst;
+  }
+}
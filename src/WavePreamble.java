@@ -0,0 +1,72 @@
+/**
+ *  Waveform preamble, as returned by :WAVeform:PREamble?, which describes the format of the samples returned
+ *  by :WAVeform:DATA? and how to convert them to volts and seconds:
+ *
+ *    <format>,<type>,<points>,<count>,<xincrement>,<xorigin>,<xreference>,<yincrement>,<yorigin>,<yreference>
+ *
+ *  where format is 0 (BYTE), 1 (WORD) or 2 (ASCii) and type is 0 (NORMal), 1 (MAXimum) or 2 (RAW).
+ */
+
+class WavePreamble {
+  static final int  BYTE = 0, WORD = 1, ASCII = 2;
+  final int         format, type;
+  final long        points;
+  final int         count;
+  final double      xIncrement, xOrigin, xReference;
+  final double      yIncrement, yOrigin, yReference;
+
+  WavePreamble (int format, int type, long points, int count, double xIncrement, double xOrigin, double xReference,
+                double yIncrement, double yOrigin, double yReference) {
+    this.format = format;
+    this.type = type;
+    this.points = points;
+    this.count = count;
+    this.xIncrement = xIncrement;
+    this.xOrigin = xOrigin;
+    this.xReference = xReference;
+    this.yIncrement = yIncrement;
+    this.yOrigin = yOrigin;
+    this.yReference = yReference;
+  }
+
+  /**
+   *  Preamble for a record of unscaled byte samples (one volt per step, one second per sample)
+   */
+  static WavePreamble raw (long points) {
+    return new WavePreamble(BYTE, 0, points, 1, 1, 0, 0, 1, 0, 0);
+  }
+
+  /**
+   *  Parses the response to :WAVeform:PREamble?
+   */
+  static WavePreamble parse (String rsp) {
+    String[] parts = rsp.trim().split(",");
+    if (parts.length < 10) {
+      throw new IllegalArgumentException("Invalid preamble: " + rsp);
+    }
+    return new WavePreamble(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                            (long) Double.parseDouble(parts[2]), (int) Double.parseDouble(parts[3]),
+                            Double.parseDouble(parts[4]), Double.parseDouble(parts[5]), Double.parseDouble(parts[6]),
+                            Double.parseDouble(parts[7]), Double.parseDouble(parts[8]), Double.parseDouble(parts[9]));
+  }
+
+  /**
+   *  @return voltage of a sample value
+   */
+  double toVolts (int value) {
+    return (value - yOrigin - yReference) * yIncrement;
+  }
+
+  /**
+   *  @return time of sample idx, relative to the trigger
+   */
+  double toSeconds (long idx) {
+    return (idx - xReference) * xIncrement + xOrigin;
+  }
+
+  @Override
+  public String toString () {
+    return format + "," + type + "," + points + "," + count + "," + xIncrement + "," + xOrigin + "," + xReference + "," +
+           yIncrement + "," + yOrigin + "," + yReference;
+  }
+}
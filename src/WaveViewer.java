@@ -2,57 +2,211 @@ import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.awt.event.*;
 import java.awt.geom.Line2D;
 import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.prefs.Preferences;
 
 class WaveViewer extends JFrame {
+  String        device = "", channel = "";       // Source and preamble saved with the record by "Add to Archive"
+  private WavePreamble  preamble;
+  private final Surface surface;
+  private final ByteBuffer data;
+  private final WaveAnalysis analysis = new WaveAnalysis();
+  private float[]       volts;                      // data converted to volts, when first analyzed
+  private JCheckBoxMenuItem measure, spectrum;
+  private WaveAnalysis.Window window = WaveAnalysis.Window.HANN;
+
   static class Surface extends JPanel {
-    private BufferedImage img;
+    private MinMaxPyramid pyramid;
+    private WaveDecoder   decoder;                  // Scaling for the readout, or null if not known
+    private String[]      measurements;             // Overlaid measurements, or null
+    private float[]       spectrum;                 // Overlaid spectrum, in dBV per column, or null
+    private String        spectrumLabel;
+    private double        viewStart, viewSpan;      // Visible range, in samples
+    private int           dragX;
+    private double        dragStart;
 
-    Surface(byte[] data) {
-      img = new BufferedImage(600, 512, BufferedImage.TYPE_INT_ARGB);
-      Dimension size = new Dimension(img.getWidth(null), img.getHeight(null));
-      setPreferredSize(size);
-      Graphics2D g2 = img.createGraphics();
+    Surface(ByteBuffer data) {
+      pyramid = new MinMaxPyramid(data);
+      viewSpan = pyramid.getLength();
+      setPreferredSize(new Dimension(Math.max(600, Math.min(1200, pyramid.getLength())), 512));
+      setToolTipText("Mouse wheel to zoom, drag to pan, double click to show all");
+      addMouseWheelListener(ev -> {
+        // Zoom about the sample under the mouse
+        double scale = Math.pow(1.25, ev.getPreciseWheelRotation());
+        double at = viewStart + viewSpan * ev.getX() / getWidth();
+        viewSpan = Math.max(Math.min(viewSpan * scale, pyramid.getLength()), 8);
+        viewStart = at - viewSpan * ev.getX() / getWidth();
+        clampView();
+        repaint();
+      });
+      MouseAdapter drag = new MouseAdapter() {
+        @Override
+        public void mousePressed (MouseEvent ev) {
+          dragX = ev.getX();
+          dragStart = viewStart;
+        }
+
+        @Override
+        public void mouseDragged (MouseEvent ev) {
+          viewStart = dragStart - (ev.getX() - dragX) * viewSpan / getWidth();
+          clampView();
+          repaint();
+        }
+
+        @Override
+        public void mouseClicked (MouseEvent ev) {
+          if (ev.getClickCount() == 2) {
+            viewStart = 0;
+            viewSpan = pyramid.getLength();
+            repaint();
+          }
+        }
+      };
+      addMouseListener(drag);
+      addMouseMotionListener(drag);
+    }
+
+    /**
+     *  Shows the time and voltage of the sample under the mouse, when the preamble is known
+     */
+    @Override
+    public String getToolTipText (MouseEvent ev) {
+      if (decoder == null) {
+        return super.getToolTipText(ev);
+      }
+      int idx = (int) Math.max(0, Math.min(pyramid.getLength() - 1, viewStart + viewSpan * ev.getX() / getWidth()));
+      return String.format("%d: %.6g s, %.4g V", idx, decoder.getPreamble().toSeconds(idx), decoder.toVolts(pyramid.get(idx)));
+    }
+
+    private void clampView () {
+      viewStart = Math.max(0, Math.min(viewStart, pyramid.getLength() - viewSpan));
+    }
+
+    @Override
+    public void paintComponent(Graphics g) {
+      draw((Graphics2D) g, getWidth(), getHeight());
+    }
+
+    /**
+     *  Draws the visible part of the record.  When there are several samples per pixel each column shows
+     *  the min/max envelope of its samples (read from the pyramid), otherwise the samples are joined by lines
+     */
+    void draw (Graphics2D g2, int width, int height) {
       g2.setColor(Color.WHITE);
-      g2.fillRect(0, 0, size.width, size.height);
+      g2.fillRect(0, 0, width, height);
       RenderingHints hints = new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
       hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
       g2.setRenderingHints(hints);
       g2.setStroke(new BasicStroke((1.0f)));
       g2.setPaint(Color.lightGray);
-      g2.draw(new Line2D.Double(0, 256, 599, 255));
-      for (int ii = 0; ii < 256; ii += 64) {
-        g2.draw(new Line2D.Double(0, 256 + ii, 599, 256 + ii));
-        g2.draw(new Line2D.Double(0, 256 - ii, 599, 256 - ii));
+      double mid = height / 2.0;
+      for (int ii = 0; ii <= 4; ii++) {
+        g2.draw(new Line2D.Double(0, mid + ii * height / 8.0, width - 1, mid + ii * height / 8.0));
+        g2.draw(new Line2D.Double(0, mid - ii * height / 8.0, width - 1, mid - ii * height / 8.0));
       }
       g2.setPaint(Color.darkGray);
-      for (int ii = 60; ii < 600; ii += 60) {
-        g2.draw(new Line2D.Double(ii, 256 - 5, ii, 256 + 5));
+      for (int ii = 1; ii < 10; ii++) {
+        double x = ii * width / 10.0;
+        g2.draw(new Line2D.Double(x, mid - 5, x, mid + 5));
       }
-      g2.setStroke(new BasicStroke((1.0f)));
       g2.setPaint(Color.BLACK);
-      Path2D.Double path = new Path2D.Double();
-      path.moveTo(0, ((int) data[0] & 0xFF) * 2);
-      for (int ii = 1; ii < data.length; ii++) {
-        path.lineTo(ii, ((int) data[ii] & 0xFF) * 2);
+      double yScale = height / 256.0;
+      double perPixel = viewSpan / width;
+      if (perPixel <= 2) {
+        int first = (int) Math.floor(viewStart);
+        int last = (int) Math.min(pyramid.getLength() - 1, Math.ceil(viewStart + viewSpan));
+        Path2D.Double path = new Path2D.Double();
+        path.moveTo((first - viewStart) / perPixel, pyramid.get(first) * yScale);
+        for (int ii = first + 1; ii <= last; ii++) {
+          path.lineTo((ii - viewStart) / perPixel, pyramid.get(ii) * yScale);
+        }
+        g2.draw(path);
+      } else {
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        int prevMin = -1, prevMax = -1;
+        for (int x = 0; x < width; x++) {
+          pyramid.range((long) (viewStart + x * perPixel), (long) (viewStart + (x + 1) * perPixel));
+          int min = pyramid.getMin();
+          int max = pyramid.getMax();
+          if (min > max) {
+            continue;
+          }
+          // Extend each column to meet the previous one so steep edges don't leave gaps
+          int lo = prevMax >= 0 ? Math.min(min, prevMax) : min;
+          int hi = prevMin >= 0 ? Math.max(max, prevMin) : max;
+          g2.drawLine(x, (int) (lo * yScale), x, (int) (hi * yScale));
+          prevMin = min;
+          prevMax = max;
+        }
       }
-      g2.draw(path);
+      drawOverlays(g2, width, height);
     }
 
-    @Override
-    public void paintComponent(Graphics g) {
-      Graphics2D g2d = (Graphics2D) g;
-      g2d.drawImage(img, 0, 0, null);
+    /**
+     *  Draws the spectrum (10 dB per division down from the top of the largest peak) and the measurements
+     */
+    private void drawOverlays (Graphics2D g2, int width, int height) {
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      FontMetrics fm = g2.getFontMetrics();
+      if (spectrum != null) {
+        float max = -Float.MAX_VALUE;
+        for (float value : spectrum) {
+          max = Math.max(max, value);
+        }
+        double top = Math.ceil(max / 10) * 10;
+        Path2D.Double path = new Path2D.Double();
+        for (int ii = 0; ii < spectrum.length; ii++) {
+          double x = ii * (width - 1.0) / Math.max(1, spectrum.length - 1);
+          double y = Math.min(height, (top - spectrum[ii]) * height / 80);
+          if (ii == 0) {
+            path.moveTo(x, y);
+          } else {
+            path.lineTo(x, y);
+          }
+        }
+        g2.setPaint(new Color(0, 90, 200, 180));
+        g2.draw(path);
+        g2.drawString(String.format("%s, top %.0f dBV, 10 dB/div", spectrumLabel, top), 8, height - fm.getDescent() - 4);
+      }
+      if (measurements != null) {
+        int boxWidth = 0;
+        for (String line : measurements) {
+          boxWidth = Math.max(boxWidth, fm.stringWidth(line));
+        }
+        g2.setPaint(new Color(255, 255, 255, 210));
+        g2.fillRect(4, 4, boxWidth + 8, measurements.length * fm.getHeight() + 6);
+        g2.setPaint(new Color(160, 0, 0));
+        for (int ii = 0; ii < measurements.length; ii++) {
+          g2.drawString(measurements[ii], 8, 6 + ii * fm.getHeight() + fm.getAscent());
+        }
+      }
+    }
+
+    BufferedImage getImage () {
+      BufferedImage img = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g2 = img.createGraphics();
+      draw(g2, img.getWidth(), img.getHeight());
+      g2.dispose();
+      return img;
     }
   }
 
   WaveViewer (Preferences prefs, byte[] data) throws Exception {
-    setTitle("WaveViewer");
-    Surface surface = new Surface(data);
+    this(prefs, ByteBuffer.wrap(data), "WaveViewer");
+  }
+
+  /**
+   *  @param data record of unsigned byte samples, which can be a memory-mapped deep memory capture
+   */
+  WaveViewer (Preferences prefs, ByteBuffer data, String title) throws Exception {
+    setTitle(title);
+    this.data = data;
+    surface = new Surface(data);
     add(surface);
     JMenuBar menuBar = new JMenuBar();
     setJMenuBar(menuBar);
@@ -73,14 +227,113 @@ class WaveViewer extends JFrame {
         File file = chooser.getSelectedFile();
         prefs.put("file.dir", chooser.getCurrentDirectory().toString());
         try {
-          ImageIO.write(surface.img, "png", file);
+          ImageIO.write(surface.getImage(), "png", file);
         } catch (Exception ex) {
           ex.printStackTrace();
         }
       }
     });
+    JMenuItem archive = new JMenuItem("Add to Archive");
+    menu.add(archive);
+    archive.addActionListener(ev -> {
+      JFileChooser chooser = new JFileChooser();
+      String fileDir = prefs.get("file.dir", null);
+      if (fileDir != null) {
+        chooser.setCurrentDirectory(new File(fileDir));
+      }
+      chooser.setDialogType(JFileChooser.SAVE_DIALOG);
+      chooser.setSelectedFile(new File("captures.rca"));
+      chooser.setFileFilter(new FileNameExtensionFilter("capture archive","rca"));
+      if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+        File file = chooser.getSelectedFile();
+        prefs.put("file.dir", chooser.getCurrentDirectory().toString());
+        try (CaptureArchive arc = new CaptureArchive(file)) {
+          ByteBuffer samples = data.duplicate();
+          samples.clear();
+          int idx = arc.append(device, channel, System.currentTimeMillis(),
+                               preamble != null ? preamble : WavePreamble.raw(samples.remaining()), samples);
+          JOptionPane.showMessageDialog(this, "Saved as record " + idx + " of " + file.getName());
+        } catch (Exception ex) {
+          ex.printStackTrace();
+          JOptionPane.showMessageDialog(this, ex.toString(), "Add to Archive", JOptionPane.ERROR_MESSAGE);
+        }
+      }
+    });
+    JMenu analyze = new JMenu("Analysis");
+    menuBar.add(analyze);
+    measure = new JCheckBoxMenuItem("Measurements");
+    measure.addActionListener(ev -> analyze());
+    analyze.add(measure);
+    spectrum = new JCheckBoxMenuItem("Spectrum");
+    spectrum.addActionListener(ev -> analyze());
+    analyze.add(spectrum);
+    JMenu windows = new JMenu("FFT Window");
+    analyze.add(windows);
+    ButtonGroup group = new ButtonGroup();
+    for (WaveAnalysis.Window win : WaveAnalysis.Window.values()) {
+      JRadioButtonMenuItem item = new JRadioButtonMenuItem(win.toString(), win == window);
+      item.addActionListener(ev -> {
+        window = win;
+        analyze();
+      });
+      group.add(item);
+      windows.add(item);
+    }
     pack();
     setLocationRelativeTo(null);
     setVisible(true);
   }
-}
\ No newline at end of file
+
+  /**
+   *  Updates the overlays selected in the Analysis menu.  The record is analyzed on a background thread,
+   *  as a deep memory record can take a moment
+   */
+  private void analyze () {
+    boolean doMeasure = measure.isSelected(), doSpectrum = spectrum.isSelected();
+    WaveAnalysis.Window win = window;
+    Thread thread = new Thread(() -> {
+      String[] lines = null;
+      float[] columns = null;
+      String label = null;
+      synchronized (analysis) {
+        WavePreamble pre = preamble != null ? preamble : WavePreamble.raw(data.remaining());
+        if (volts == null && (doMeasure || doSpectrum)) {
+          ByteBuffer samples = data.duplicate();
+          samples.clear();
+          volts = new WaveDecoder(pre).toVolts(samples);
+        }
+        if (doMeasure) {
+          lines = analysis.measure(volts, volts.length, pre.xIncrement).toString().split(", ");
+        }
+        if (doSpectrum && volts.length >= 4) {
+          WaveAnalysis.Spectrum spec = analysis.spectrum(volts, volts.length, pre.xIncrement, win);
+          columns = spec.toColumns(Math.min(spec.bins, 2048));
+          label = String.format("FFT (%s) 0 to %.4g Hz, peak %.4g Hz", win, (spec.bins - 1) * spec.binWidth,
+                                spec.getPeakFrequency());
+        }
+      }
+      String[] measurements = lines;
+      float[] spectrum = columns;
+      String spectrumLabel = label;
+      SwingUtilities.invokeLater(() -> {
+        surface.measurements = measurements;
+        surface.spectrum = spectrum;
+        surface.spectrumLabel = spectrumLabel;
+        surface.repaint();
+      });
+    }, "WaveViewer analysis");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   *  Sets the preamble used to scale the readout and saved with the record by "Add to Archive"
+   */
+  void setPreamble (WavePreamble preamble) {
+    this.preamble = preamble;
+    synchronized (analysis) {
+      volts = null;
+    }
+    surface.decoder = preamble != null ? new WaveDecoder(preamble) : null;
+  }
+}
@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ *  Checks that a CaptureArchive that is reopened, appended to and then not closed (as after a crash) is
+ *  read back with every record, rather than with the stale index written when it was last closed.  Usage
+ *  (after compiling src and test):
+ *
+ *    java -cp out:test:lib/* CaptureArchiveTest
+ *
+ *  Exits with status 1 (after printing what differed) if a check fails.
+ */
+
+class CaptureArchiveTest {
+  private static int  failures;
+
+  public static void main (String[] args) throws IOException {
+    File file = Files.createTempFile("captures", ".bin").toFile();
+    try {
+      WavePreamble pre = WavePreamble.raw(600);
+      // 100 records, so the index (824 bytes) is larger than the small record appended after reopening
+      CaptureArchive archive = new CaptureArchive(file);
+      for (int ii = 0; ii < 100; ii++) {
+        archive.append("DS4024", "CHAN1", ii, pre, data(ii, 600));
+      }
+      archive.close();
+      archive = new CaptureArchive(file);
+      check("after reopen, records", archive.size(), 100);
+      archive.append("DS4024", "CHAN2", 100, pre, data(100, 16));
+      // Not closed, so no new index has been written
+      CaptureArchive reopened = new CaptureArchive(file, true);
+      check("after crash, records", reopened.size(), 101);
+      for (int ii = 0; ii < reopened.size(); ii++) {
+        CaptureArchive.Record rec = reopened.get(ii);
+        check("after crash, record " + ii + " time", rec.time, (long) ii);
+        check("after crash, record " + ii + " data", rec.data, data(ii, ii < 100 ? 600 : 16));
+      }
+      reopened.close();
+      archive.close();
+      archive = new CaptureArchive(file, true);
+      check("after close, records", archive.size(), 101);
+      archive.close();
+    } finally {
+      file.delete();
+    }
+    System.out.println(failures == 0 ? "CaptureArchiveTest passed" : "CaptureArchiveTest: " + failures + " failures");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  private static ByteBuffer data (int seed, int size) {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    for (int ii = 0; ii < size; ii++) {
+      buf.put((byte) (seed * 31 + ii));
+    }
+    buf.flip();
+    return buf;
+  }
+
+  private static void check (String what, Object actual, Object expected) {
+    if (!actual.equals(expected)) {
+      System.out.println(what + ": got " + actual + ", expected " + expected);
+      failures++;
+    }
+  }
+}
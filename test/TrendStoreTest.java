@@ -0,0 +1,79 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ *  Checks that a TrendStore series reopens with every reading counted at every resolution, including
+ *  rollup intervals that were still open when it was closed.  Usage (after compiling src and test):
+ *
+ *    java -cp out:test:lib/* TrendStoreTest
+ *
+ *  Exits with status 1 (after printing what differed) if a check fails.
+ */
+
+class TrendStoreTest {
+  private static final long HOUR = 3600 * 1000L;
+  private static int        failures;
+
+  public static void main (String[] args) throws IOException {
+    File dir = Files.createTempDirectory("trends").toFile();
+    try {
+      long base = 1700000000000L / HOUR * HOUR;
+      // 1800 one second readings in the first half of an hour, so no 1h record has been written
+      TrendStore store = new TrendStore(dir);
+      TrendStore.Series series = store.series("volts");
+      for (int ii = 0; ii < 1800; ii++) {
+        series.append(base + ii * 1000L, 5 + ii * 1e-6);
+      }
+      checkCounts("before close", series, base, 1800);
+      store.close();
+      // Reopen and add 10 more, then every resolution should hold all 1810
+      store = new TrendStore(dir);
+      series = store.series("volts");
+      checkCounts("after reopen", series, base, 1800);
+      for (int ii = 1800; ii < 1810; ii++) {
+        series.append(base + ii * 1000L, 5 + ii * 1e-6);
+      }
+      checkCounts("after append", series, base, 1810);
+      check("getCount()", series.getCount(), 1810L);
+      // Reopen without closing, as after a crash, with the readings spanning two hours
+      for (int ii = 1810; ii < 5400; ii++) {
+        series.append(base + ii * 1000L, 5 + ii * 1e-6);
+      }
+      store = new TrendStore(dir);
+      checkCounts("after crash", store.series("volts"), base, 5400);
+      store.close();
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+    System.out.println(failures == 0 ? "TrendStoreTest passed" : "TrendStoreTest: " + failures + " failures");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /**
+   *  Queries two hours from base at widths that use the 1h, 1m and 1s rollups and the raw readings
+   */
+  private static void checkCounts (String when, TrendStore.Series series, long base, long expected) {
+    int[] points = {2, 120, 7200, 72000};
+    String[] sources = {"1h", "1m", "1s", "raw"};
+    for (int ii = 0; ii < points.length; ii++) {
+      TrendStore.Trend trend = series.query(base, base + 2 * HOUR, points[ii]);
+      long count = 0;
+      for (int jj = 0; jj < trend.size; jj++) {
+        count += trend.counts[jj];
+      }
+      check(when + ", " + sources[ii] + " source", trend.source, sources[ii]);
+      check(when + ", " + sources[ii] + " count", count, expected);
+    }
+  }
+
+  private static void check (String what, Object actual, Object expected) {
+    if (!actual.equals(expected)) {
+      System.out.println(what + ": got " + actual + ", expected " + expected);
+      failures++;
+    }
+  }
+}